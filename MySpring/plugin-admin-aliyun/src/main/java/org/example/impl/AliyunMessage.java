@@ -1,27 +1,49 @@
 package org.example.impl;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.MessageEnvelope;
 import org.example.MessagePlugin;
+import org.example.PluginContext;
+import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * @author zhy
  * @date 2024/7/22 16:00
  */
 public class AliyunMessage<T> implements MessagePlugin<T> {
-    private ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * 不是bean，由插件框架实例化后注入
+     */
+    @Autowired
+    private PluginContext pluginContext;
 
     @Override
     public boolean send(T message) {
-        A2.print();
-        new A3().print();
         try {
-            System.out.println("test aliyun");
-            System.out.println("Aliyun send message: " + objectMapper.writeValueAsString(message));
+            return doSend(pluginContext.getObjectMapper().writeValueAsString(message));
         } catch (JsonProcessingException e) {
-            e.printStackTrace();
+            pluginContext.getLogger().error("序列化消息失败: " + e.getMessage(), e);
             return false;
         }
+    }
+
+    /**
+     * 使用主程序序列化好的消息
+     */
+    @Override
+    public boolean sendEnvelope(MessageEnvelope<T> envelope) {
+        try {
+            return doSend(envelope.toJson());
+        } catch (JsonProcessingException e) {
+            pluginContext.getLogger().error("序列化消息失败: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean doSend(String json) {
+        A2.print();
+        new A3().print();
+        pluginContext.getLogger().info("Aliyun send message: " + json);
         return true;
     }
 //
@@ -1,14 +1,21 @@
 package org.example.impl;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import org.example.MessageEnvelope;
 import org.example.MessagePlugin;
-import org.example.util.HttpUtil;
+import org.example.PluginContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author zhy
@@ -20,7 +27,8 @@ public class TencentMessage<T> implements MessagePlugin<T> {
     private Conf conf;
     private final TencentPrint tencentPrint;
     private final A0 a0;
-    private ObjectMapper objectMapper = new ObjectMapper();
+    @Autowired
+    private PluginContext pluginContext;
 
     public TencentMessage(TencentPrint tencentPrint, A0 a0) {
         this.tencentPrint = tencentPrint;
@@ -29,26 +37,47 @@ public class TencentMessage<T> implements MessagePlugin<T> {
 
     @Override
     public boolean send(T message) {
-        A2.print();
-        new A3().print();
-        System.out.println(conf.runMode);
         try {
-            HttpUtil.HttpEntityVo vo = new HttpUtil.HttpEntityVo();
-            vo.setUrl("http://20.0.0.48:8702/event/type/all");
-            vo.setMethod("get");
-            vo.getHeaders().put("tenantId","b8e83a519a41418583bd847e8b108f22");
-            vo.getHeaders().put("userId",2);
-            vo.getHeaders().put("userType",2);
-            vo.getHeaders().put("userName","admin");
-            ResponseEntity<String> request = HttpUtil.request(vo);
-            System.out.println(request.getBody());
+            return doSend(pluginContext.getObjectMapper().writeValueAsString(message));
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
 
-            System.out.println("tencent class send");
-            String s = "Tencent send message: " + objectMapper.writeValueAsString(message);
-            tencentPrint.print(s);
+    /**
+     * 使用主程序序列化好的消息
+     */
+    @Override
+    public boolean sendEnvelope(MessageEnvelope<T> envelope) {
+        try {
+            return doSend(envelope.toJson());
         } catch (JsonProcessingException e) {
             return false;
         }
+    }
+
+    private boolean doSend(String json) {
+        A2.print();
+        new A3().print();
+        pluginContext.getLogger().info(conf.runMode);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("tenantId", "b8e83a519a41418583bd847e8b108f22");
+        headers.add("userId", "2");
+        headers.add("userType", "2");
+        headers.add("userName", "admin");
+        headers.add(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE);
+        try {
+            ResponseEntity<String> response = pluginContext.getRestTemplate().exchange("http://20.0.0.48:8702/event/type/all",
+                    HttpMethod.GET, new HttpEntity<>(headers), String.class);
+            pluginContext.getLogger().info(response.getBody());
+        } catch (RestClientException | RejectedExecutionException e) {
+            pluginContext.getLogger().warn("查询事件类型失败: " + e.getMessage());
+        }
+
+        pluginContext.getLogger().info("tencent class send");
+        pluginContext.getMeterRegistry().counter("tencent.sent").increment();
+        String s = "Tencent send message: " + json;
+        tencentPrint.print(s);
         return true;
     }
 
@@ -58,11 +87,11 @@ public class TencentMessage<T> implements MessagePlugin<T> {
 //    }
     @PostConstruct
     public void postConstruct() {
-        System.out.println("TencentMessage加载成功");
+        pluginContext.getLogger().info("TencentMessage加载成功");
     }
 
     @PreDestroy
     public void preDestroy() {
-        System.out.println("TencentMessage卸载成功");
+        pluginContext.getLogger().info("TencentMessage卸载成功");
     }
 }
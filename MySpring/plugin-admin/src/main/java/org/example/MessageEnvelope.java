@@ -0,0 +1,84 @@
+package org.example;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author zhy
+ * @date 2024/10/9 10:00
+ * <p>
+ * 主程序传给插件的消息，同一条消息发给多个插件时共用一个envelope，第一次用到时序列化一次，之后直接返回缓存的结果
+ * <p>
+ * toBytes返回的数组是共用的，插件不要修改
+ */
+public final class MessageEnvelope<T> {
+    private final T message;
+    private final ObjectMapper objectMapper;
+    private volatile byte[] bytes;
+    private volatile String json;
+
+    public MessageEnvelope(T message, ObjectMapper objectMapper) {
+        this(message, objectMapper, null);
+    }
+
+    /**
+     * @param message
+     * @param objectMapper
+     * @param bytes        已经用objectMapper序列化好的内容，比如从暂存里读出的消息
+     */
+    public MessageEnvelope(T message, ObjectMapper objectMapper, byte[] bytes) {
+        this.message = message;
+        this.objectMapper = objectMapper;
+        this.bytes = bytes;
+    }
+
+    public T getMessage() {
+        return message;
+    }
+
+    /**
+     * 主程序共用的ObjectMapper，已经预热过，插件不要修改它的配置
+     *
+     * @return
+     */
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    /**
+     * 消息序列化后的json，UTF-8编码
+     *
+     * @return
+     * @throws JsonProcessingException
+     */
+    public byte[] toBytes() throws JsonProcessingException {
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            synchronized (this) {
+                bytes = this.bytes;
+                if (bytes == null) {
+                    bytes = objectMapper.writeValueAsBytes(message);
+                    this.bytes = bytes;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 消息序列化后的json
+     *
+     * @return
+     * @throws JsonProcessingException
+     */
+    public String toJson() throws JsonProcessingException {
+        String json = this.json;
+        if (json == null) {
+            json = new String(toBytes(), StandardCharsets.UTF_8);
+            this.json = json;
+        }
+        return json;
+    }
+}
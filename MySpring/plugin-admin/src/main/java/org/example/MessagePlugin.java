@@ -1,9 +1,62 @@
 package org.example;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * @author zhy
  * @date 2024/7/22 15:57
  */
 public interface MessagePlugin<T> {
     boolean send(T message);
+
+    /**
+     * 发送主程序包装好的消息，同一条消息发给多个插件时只序列化一次
+     * <p>
+     * 需要把消息转成json的插件覆盖这个方法，用envelope.toJson()或toBytes()代替自己序列化；默认调用send
+     *
+     * @param envelope
+     * @return 发送结果
+     */
+    default boolean sendEnvelope(MessageEnvelope<T> envelope) {
+        return send(envelope.getMessage());
+    }
+
+    /**
+     * 异步发送，使用非阻塞客户端的插件覆盖这个方法，调用期间不占用线程
+     * <p>
+     * 没有覆盖时主程序在插件自己的线程池里调用send，默认实现只在直接调用时使用
+     *
+     * @param message
+     * @return 发送结果
+     */
+    default CompletionStage<Boolean> sendAsync(T message) {
+        try {
+            return CompletableFuture.completedFuture(send(message));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 批量发送，默认逐条调用send，支持批量接口的插件可以覆盖这个方法一次发出
+     *
+     * @param messages
+     * @return 每条消息的发送结果，和messages的顺序一致
+     */
+    default List<Boolean> sendBatch(List<T> messages) {
+        List<Boolean> results = new ArrayList<>(messages.size());
+        for (T message : messages) {
+            results.add(send(message));
+        }
+        return results;
+    }
+
+    /**
+     * 预热，启动时插件加载完后调用一次，可以在这里初始化连接、用测试数据走一遍发送流程(不要真正发出去)
+     */
+    default void warmUp() {
+    }
 }
@@ -0,0 +1,46 @@
+package org.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * @author zhy
+ * @date 2024/10/10 10:20
+ * <p>
+ * 主程序提供给插件的服务，插件用@Autowired注入，不要自己创建连接池、ObjectMapper
+ * <p>
+ * 这些对象属于主程序，插件卸载后不会留在插件的classLoader里；插件注册的指标在卸载时自动移除
+ */
+public interface PluginContext {
+    String getPluginName();
+
+    /**
+     * 主程序共用的ObjectMapper，已经预热过，插件不要修改它的配置
+     *
+     * @return
+     */
+    ObjectMapper getObjectMapper();
+
+    /**
+     * 主程序共用连接池的RestTemplate，已经按外部地址熔断
+     *
+     * @return
+     */
+    RestTemplate getRestTemplate();
+
+    /**
+     * 插件自己的指标，注册的指标自动加上plugin标签，插件卸载时移除
+     *
+     * @return
+     */
+    MeterRegistry getMeterRegistry();
+
+    /**
+     * 插件的日志，异步输出，代替System.out
+     *
+     * @return
+     */
+    Logger getLogger();
+}
@@ -4,14 +4,18 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.http.*;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * @author zhy
@@ -20,17 +24,27 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class HttpUtil {
     private static ConcurrentHashMap<String, RestTemplate> restTemplateMap = new ConcurrentHashMap<>();
+    /**
+     * 主程序注册的拦截器，比如按外部地址熔断
+     */
+    private static final List<ClientHttpRequestInterceptor> interceptors = new CopyOnWriteArrayList<>();
+
+    /**
+     * 添加拦截器，对已经创建的RestTemplate也生效
+     *
+     * @param interceptor
+     */
+    public static synchronized void addInterceptor(ClientHttpRequestInterceptor interceptor) {
+        interceptors.add(interceptor);
+        restTemplateMap.values().forEach(restTemplate -> restTemplate.getInterceptors().add(interceptor));
+    }
 
     public static ResponseEntity<String> request(HttpEntityVo entityVo) {
         String key = String.format("%s:%s", entityVo.getConnectTimeOut(), entityVo.getReadTimeout());
-        if (!restTemplateMap.containsKey(key)) {
-            SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
-            factory.setConnectTimeout(entityVo.getConnectTimeOut());
-            factory.setReadTimeout(entityVo.getReadTimeout());
-            RestTemplate restTemplate = new RestTemplate(factory);
-            restTemplateMap.put(key, restTemplate);
-        }
         RestTemplate restTemplate = restTemplateMap.get(key);
+        if (restTemplate == null) {
+            restTemplate = createRestTemplate(key, entityVo);
+        }
         String url = entityVo.getUrl();
         String method = entityVo.getMethod();
         if (StringUtils.isEmpty(url) || StringUtils.isEmpty(method)) {
@@ -58,6 +72,10 @@ public class HttpUtil {
             }
             url = URLDecoder.decode(url, StandardCharsets.UTF_8);
             responseEntity = restTemplate.exchange(url, httpMethod, entity, String.class);
+        } catch (RejectedExecutionException ex) {
+            // 熔断中，没有发出请求
+            log.warn(ex.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(ex.getMessage());
         } catch (Exception ex) {
             log.error(ex.getMessage(), ex);
             return ResponseEntity.ok(ex.getMessage());
@@ -65,6 +83,17 @@ public class HttpUtil {
         return responseEntity;
     }
 
+    private static synchronized RestTemplate createRestTemplate(String key, HttpEntityVo entityVo) {
+        return restTemplateMap.computeIfAbsent(key, k -> {
+            SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+            factory.setConnectTimeout(entityVo.getConnectTimeOut());
+            factory.setReadTimeout(entityVo.getReadTimeout());
+            RestTemplate restTemplate = new RestTemplate(factory);
+            restTemplate.getInterceptors().addAll(interceptors);
+            return restTemplate;
+        });
+    }
+
     @Data
     public static class HttpEntityVo {
         private String url;
@@ -1,12 +1,20 @@
 package org.example.controller;
 
+import org.example.core.PluginLeakStats;
+import org.example.core.PluginManager;
+import org.example.core.PluginProperties;
+import org.example.core.PluginRateLimitStats;
+import org.example.core.PluginRateLimits;
+import org.example.model.FanOutMode;
+import org.example.model.FanOutResult;
 import org.example.model.MessageData;
 import org.example.service.PluginService;
-import org.example.util.HttpUtil;
-import org.springframework.http.ResponseEntity;
+import org.example.spool.MessageSpool;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author zhy
@@ -16,33 +24,84 @@ import java.util.Map;
 @RequestMapping("/plugin")
 public class PluginController {
     private final PluginService pluginService;
+    private final MessageSpool messageSpool;
+    private final PluginRateLimits pluginRateLimits;
 
-    public PluginController(PluginService pluginService) {
+    public PluginController(PluginService pluginService, MessageSpool messageSpool, PluginRateLimits pluginRateLimits) {
         this.pluginService = pluginService;
+        this.messageSpool = messageSpool;
+        this.pluginRateLimits = pluginRateLimits;
     }
 
+    /**
+     * 同时发给pluginNameList里的所有插件
+     *
+     * @param mode     BEST_EFFORT: 尽力而为; ALL_OR_NOTHING: 有一个失败就不再等待其他插件
+     * @param deadline 整体期限(毫秒)，不传时等所有插件返回
+     */
     @GetMapping
-    public void all(MessageData messageData) {
-        pluginService.all(messageData);
+    public CompletableFuture<FanOutResult> all(MessageData messageData,
+            @RequestParam(defaultValue = "BEST_EFFORT") FanOutMode mode,
+            @RequestParam(required = false) Long deadline) {
+        return pluginService.all(messageData, mode, deadline == null ? null : Duration.ofMillis(deadline));
     }
 
     @GetMapping("/{type}")
     public void send(@PathVariable String type, MessageData messageData) {
-        HttpUtil.HttpEntityVo vo = new HttpUtil.HttpEntityVo();
-        vo.setUrl("http://20.0.0.48:8702/event/type/all");
-        vo.setMethod("get");
-        vo.getHeaders().put("tenantId","b8e83a519a41418583bd847e8b108f22");
-        vo.getHeaders().put("userId",2);
-        vo.getHeaders().put("userType",2);
-        vo.getHeaders().put("userName","admin");
-        ResponseEntity<String> request = HttpUtil.request(vo);
-        System.out.println(request.getBody());
         pluginService.send(type, messageData);
     }
 
+    /**
+     * 异步发送，等待插件返回期间不占用请求线程
+     */
+    @GetMapping("/async/{type}")
+    public CompletableFuture<Boolean> sendAsync(@PathVariable String type, MessageData messageData) {
+        return pluginService.sendAsync(type, messageData);
+    }
+
+    /**
+     * 攒批发送，同一时间发给同一个插件的消息合并成一次sendBatch调用
+     */
+    @GetMapping("/batch/{type}")
+    public Boolean sendBatched(@PathVariable String type, MessageData messageData) {
+        return pluginService.sendBatched(type, messageData);
+    }
+
     @GetMapping("/unload/{type}")
     public void unload(@PathVariable String type) {
         pluginService.unload(type);
     }
 
+    /**
+     * 各插件的限流和自适应并发数
+     */
+    @GetMapping("/limits")
+    public Map<String, PluginRateLimitStats> limits() {
+        return pluginRateLimits.getStats();
+    }
+
+    /**
+     * 修改插件的限流，只修改传了的项，立即生效
+     */
+    @PutMapping("/limits/{type}")
+    public PluginRateLimitStats updateLimits(@PathVariable String type, @RequestBody PluginProperties.RateLimitRule rule) {
+        return pluginRateLimits.update(type, rule);
+    }
+
+    /**
+     * 各插件classLoader的回收情况
+     */
+    @GetMapping("/diagnostics/leaks")
+    public Map<String, PluginLeakStats> leaks() {
+        return PluginManager.getLeakStats();
+    }
+
+    /**
+     * 每个插件暂存里还没有发送的字节数
+     */
+    @GetMapping("/diagnostics/spool")
+    public Map<String, Long> spool() {
+        return messageSpool.getBacklog();
+    }
+
 }
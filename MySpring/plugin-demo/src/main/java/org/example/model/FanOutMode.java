@@ -0,0 +1,18 @@
+package org.example.model;
+
+/**
+ * @author zhy
+ * @date 2024/9/26 10:00
+ * <p>
+ * 同时发给多个插件时的模式
+ */
+public enum FanOutMode {
+    /**
+     * 尽力而为，等所有插件返回或到期，成功多少算多少
+     */
+    BEST_EFFORT,
+    /**
+     * 全部成功才算成功，有一个插件失败就不再等待，还没开始的调用直接取消
+     */
+    ALL_OR_NOTHING
+}
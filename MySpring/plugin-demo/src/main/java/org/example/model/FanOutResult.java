@@ -0,0 +1,31 @@
+package org.example.model;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author zhy
+ * @date 2024/9/26 10:10
+ * <p>
+ * 同时发给多个插件的汇总结果
+ */
+@Data
+public class FanOutResult {
+    private FanOutMode mode;
+    /**
+     * 所有插件都发送成功
+     */
+    private boolean success;
+    private int succeeded;
+    private int failed;
+    /**
+     * 总耗时
+     */
+    private long millis;
+    /**
+     * 每个插件的结果，和pluginNameList的顺序一致
+     */
+    private List<PluginSendResult> results = new ArrayList<>();
+}
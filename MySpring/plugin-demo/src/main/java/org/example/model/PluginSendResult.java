@@ -0,0 +1,61 @@
+package org.example.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * @author zhy
+ * @date 2024/9/26 10:05
+ * <p>
+ * 单个插件的发送结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PluginSendResult {
+    private String pluginName;
+    private Status status;
+    /**
+     * 插件send的返回值，没有返回时为null
+     */
+    private Boolean result;
+    /**
+     * 从提交到返回的耗时
+     */
+    private long millis;
+    private String error;
+
+    @JsonIgnore
+    public boolean isSuccess() {
+        return status == Status.SUCCESS;
+    }
+
+    public enum Status {
+        /**
+         * 插件返回true
+         */
+        SUCCESS,
+        /**
+         * 插件返回false或抛出异常
+         */
+        FAILED,
+        /**
+         * 超过插件的超时时间或整体期限
+         */
+        TIMEOUT,
+        /**
+         * 插件的并发数和排队数都已满
+         */
+        REJECTED,
+        /**
+         * 其他插件失败后取消
+         */
+        CANCELLED,
+        /**
+         * 插件不存在或没有实现MessagePlugin
+         */
+        NOT_FOUND
+    }
+}
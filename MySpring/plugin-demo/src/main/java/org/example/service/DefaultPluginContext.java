@@ -0,0 +1,80 @@
+package org.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.example.PluginContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * @author zhy
+ * @date 2024/10/10 11:00
+ * <p>
+ * 注册到每个插件容器里的PluginContext，除了指标以外都是主程序共用的对象
+ * <p>
+ * 插件的指标带plugin和generation标签，generation是插件版本号。新旧版本切换时两个版本的指标id不同，
+ * 旧版本卸载时只移除自己的指标，按插件统计时需要按generation汇总
+ */
+class DefaultPluginContext implements PluginContext, DisposableBean {
+    private final String pluginName;
+    private final ObjectMapper objectMapper;
+    private final RestTemplate restTemplate;
+    private final MeterRegistry hostRegistry;
+    /**
+     * 插件注册的指标先注册到这里，再由它注册到主程序，卸载时按这里的记录移除
+     */
+    private final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+    private final Logger logger;
+
+    DefaultPluginContext(String pluginName, long generation, ObjectMapper objectMapper, RestTemplate restTemplate,
+                         MeterRegistry hostRegistry) {
+        this.pluginName = pluginName;
+        this.objectMapper = objectMapper;
+        this.restTemplate = restTemplate;
+        this.hostRegistry = hostRegistry;
+        this.meterRegistry.config().commonTags("plugin", pluginName, "generation", String.valueOf(generation));
+        this.meterRegistry.add(hostRegistry);
+        this.logger = LoggerFactory.getLogger("plugin." + pluginName);
+    }
+
+    @Override
+    public String getPluginName() {
+        return pluginName;
+    }
+
+    @Override
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    @Override
+    public RestTemplate getRestTemplate() {
+        return restTemplate;
+    }
+
+    @Override
+    public MeterRegistry getMeterRegistry() {
+        return meterRegistry;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    /**
+     * 插件卸载时移除插件注册的指标，指标的回调引用着插件的对象，不移除的话插件的classLoader无法回收
+     */
+    @Override
+    public void destroy() {
+        for (Meter meter : meterRegistry.getMeters()) {
+            hostRegistry.removeByPreFilterId(meter.getId());
+        }
+        meterRegistry.clear();
+        meterRegistry.remove(hostRegistry);
+    }
+}
@@ -0,0 +1,19 @@
+package org.example.service;
+
+import org.example.core.HostCircuitBreakerInterceptor;
+import org.example.core.PluginCircuitBreakers;
+import org.example.util.HttpUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 14:00
+ * <p>
+ * 插件通过HttpUtil访问的外部地址按host熔断
+ */
+@Component
+public class HttpCircuitBreakerRegistrar {
+    public HttpCircuitBreakerRegistrar(PluginCircuitBreakers pluginCircuitBreakers) {
+        HttpUtil.addInterceptor(new HostCircuitBreakerInterceptor(pluginCircuitBreakers));
+    }
+}
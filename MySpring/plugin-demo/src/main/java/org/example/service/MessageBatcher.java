@@ -0,0 +1,164 @@
+package org.example.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.MessagePlugin;
+import org.example.core.PluginBulkheads;
+import org.example.model.MessageData;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * @author zhy
+ * @date 2024/9/27 10:00
+ * <p>
+ * 消息攒批，同一个插件的消息攒够maxSize条或第一条等了linger之后，一次调用插件的sendBatch发出
+ * <p>
+ * 攒好的批次交给插件自己的舱壁加载插件和发送，定时线程只负责取出批次，一个插件冷加载不会拖住其他插件的批次；
+ * 关闭后不再接受新消息，已经攒的消息立即发出
+ */
+@Slf4j
+@Component
+public class MessageBatcher implements DisposableBean {
+    private final PluginBulkheads pluginBulkheads;
+    private final int maxSize;
+    private final Duration linger;
+    private final ConcurrentHashMap<String, Batch> batchMap = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+
+    public MessageBatcher(PluginBulkheads pluginBulkheads,
+                          @Value("${message.batch.max-size:50}") int maxSize,
+                          @Value("${message.batch.linger:20ms}") Duration linger) {
+        this.pluginBulkheads = pluginBulkheads;
+        this.maxSize = Math.max(1, maxSize);
+        this.linger = linger;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 加入插件的批次
+     *
+     * @param pluginName
+     * @param messageData
+     * @return 这条消息的发送结果，插件不存在时为null，已关闭时以RejectedExecutionException结束
+     */
+    public CompletableFuture<Boolean> submit(String pluginName, MessageData messageData) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("消息攒批已关闭, 插件: " + pluginName));
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        Batch batch = batchMap.computeIfAbsent(pluginName, Batch::new);
+        List<Pending> full = null;
+        synchronized (batch) {
+            batch.pending.add(new Pending(messageData, future));
+            if (batch.pending.size() >= maxSize) {
+                full = batch.drain();
+            } else if (batch.pending.size() == 1) {
+                try {
+                    batch.lingerFuture = scheduler.schedule(() -> flush(batch), linger.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // 正在关闭，不再等linger
+                    full = batch.drain();
+                }
+            }
+        }
+        if (full != null) {
+            dispatch(pluginName, full);
+        }
+        return future;
+    }
+
+    private void flush(Batch batch) {
+        List<Pending> pending;
+        synchronized (batch) {
+            pending = batch.drain();
+        }
+        if (!pending.isEmpty()) {
+            dispatch(batch.pluginName, pending);
+        }
+    }
+
+    private void dispatch(String pluginName, List<Pending> pending) {
+        List<MessageData> messages = pending.stream().map(Pending::messageData).toList();
+        log.debug("批量发送到插件 " + pluginName + ", 条数: " + messages.size());
+        CompletableFuture<List<Boolean>> future;
+        try {
+            future = pluginBulkheads.submitDeferred(pluginName, plugin -> {
+                MessagePlugin<MessageData> instance = plugin.instance(MessagePlugin.class);
+                if (instance == null) {
+                    return null;
+                }
+                return instance.sendBatch(messages);
+            });
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((results, e) -> {
+            if (e != null) {
+                log.warn("批量发送到插件 " + pluginName + " 失败, 条数: " + pending.size() + ", " + e.getMessage());
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                CompletableFuture<Boolean> result = pending.get(i).future();
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else if (results == null) {
+                    result.complete(null);
+                } else {
+                    // 插件返回的结果比消息少时，少的部分按失败处理
+                    result.complete(i < results.size() && Boolean.TRUE.equals(results.get(i)));
+                }
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        scheduler.shutdownNow();
+        // 还没发出的消息直接发出，不等linger
+        for (Batch batch : batchMap.values()) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * 一个插件正在攒的批次
+     */
+    private class Batch {
+        private final String pluginName;
+        private List<Pending> pending = new ArrayList<>();
+        private ScheduledFuture<?> lingerFuture;
+
+        private Batch(String pluginName) {
+            this.pluginName = pluginName;
+        }
+
+        /**
+         * 取出攒好的消息，调用方持有batch的锁
+         */
+        private List<Pending> drain() {
+            List<Pending> drained = pending;
+            pending = new ArrayList<>();
+            if (lingerFuture != null) {
+                lingerFuture.cancel(false);
+                lingerFuture = null;
+            }
+            // 空的批次不保留，避免不存在的插件名一直占用
+            batchMap.remove(pluginName, this);
+            return drained;
+        }
+    }
+
+    private record Pending(MessageData messageData, CompletableFuture<Boolean> future) {
+    }
+}
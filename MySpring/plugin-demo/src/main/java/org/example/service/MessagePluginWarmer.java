@@ -0,0 +1,23 @@
+package org.example.service;
+
+import org.example.MessagePlugin;
+import org.example.core.Plugin;
+import org.example.core.PluginWarmer;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author zhy
+ * @date 2024/9/23 16:00
+ * <p>
+ * 启动时调用消息插件的预热方法
+ */
+@Component
+public class MessagePluginWarmer implements PluginWarmer {
+    @Override
+    public void warmUp(Plugin plugin) {
+        MessagePlugin<?> instance = plugin.instance(MessagePlugin.class);
+        if (instance != null) {
+            instance.warmUp();
+        }
+    }
+}
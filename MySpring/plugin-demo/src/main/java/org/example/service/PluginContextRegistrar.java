@@ -0,0 +1,53 @@
+package org.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.example.PluginContext;
+import org.example.core.HostCircuitBreakerInterceptor;
+import org.example.core.Plugin;
+import org.example.core.PluginCircuitBreakers;
+import org.example.core.PluginContextCustomizer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+
+/**
+ * @author zhy
+ * @date 2024/10/10 11:30
+ * <p>
+ * 在每个插件的容器里注册PluginContext，所有插件共用一个HTTP连接池和ObjectMapper
+ */
+@Component
+public class PluginContextRegistrar implements PluginContextCustomizer {
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final RestTemplate restTemplate;
+
+    public PluginContextRegistrar(ObjectMapper objectMapper,
+                                  MeterRegistry meterRegistry,
+                                  PluginCircuitBreakers pluginCircuitBreakers,
+                                  @Value("${message.http.connect-timeout:5s}") Duration connectTimeout,
+                                  @Value("${message.http.read-timeout:30s}") Duration readTimeout) {
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        // JDK的HttpClient自带连接池，所有插件共用一个
+        HttpClient httpClient = HttpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .build();
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient);
+        requestFactory.setReadTimeout(readTimeout);
+        this.restTemplate = new RestTemplate(requestFactory);
+        this.restTemplate.getInterceptors().add(new HostCircuitBreakerInterceptor(pluginCircuitBreakers));
+    }
+
+    @Override
+    public void customize(Plugin plugin, GenericApplicationContext context) {
+        context.registerBean("pluginContext", PluginContext.class,
+                () -> new DefaultPluginContext(plugin.getName(), plugin.getVersion(), objectMapper, restTemplate, meterRegistry));
+    }
+}
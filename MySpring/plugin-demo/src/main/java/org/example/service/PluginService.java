@@ -1,17 +1,27 @@
 package org.example.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.example.MessageEnvelope;
 import org.example.MessagePlugin;
 
 import org.example.core.Plugin;
+import org.example.core.PluginBulkheads;
 import org.example.core.PluginManager;
+import org.example.model.FanOutMode;
+import org.example.model.FanOutResult;
 import org.example.model.MessageData;
+import org.example.model.PluginSendResult;
+import org.example.spool.MessageSpool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
 import java.net.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -22,34 +32,206 @@ import java.util.jar.JarFile;
 @Service
 @Slf4j
 public class PluginService {
-    public void all(MessageData messageData) {
-        List<String> pluginNameList = messageData.getPluginNameList();
-        if (pluginNameList.isEmpty()) {
-            return;
+    /**
+     * 插件类是否覆盖了sendAsync，按类缓存，插件卸载后不影响类的回收
+     */
+    private static final ClassValue<Boolean> ASYNC = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("sendAsync", Object.class).getDeclaringClass() != MessagePlugin.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
         }
+    };
+    private static final Object EXPIRED = new Object();
+
+    private final PluginBulkheads pluginBulkheads;
+    private final MessageBatcher messageBatcher;
+    private final MessageSpool messageSpool;
+    private final ObjectMapper objectMapper;
+
+    public PluginService(PluginBulkheads pluginBulkheads, MessageBatcher messageBatcher, MessageSpool messageSpool,
+                         ObjectMapper objectMapper) {
+        this.pluginBulkheads = pluginBulkheads;
+        this.messageBatcher = messageBatcher;
+        this.messageSpool = messageSpool;
+        this.objectMapper = objectMapper;
+        // 提前创建MessageData的序列化器，第一条消息不用等
+        try {
+            objectMapper.writeValueAsBytes(new MessageData());
+        } catch (JsonProcessingException e) {
+            log.warn("预热ObjectMapper失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 同时发给pluginNameList里的所有插件，汇总每个插件的结果，等待期间不占用线程；所有插件共用一个envelope，消息只序列化一次
+     *
+     * @param messageData
+     * @param mode        尽力而为或全部成功
+     * @param deadline    整体期限，为null时等到每个插件都返回(每个插件仍受舱壁超时限制)
+     * @return
+     */
+    public CompletableFuture<FanOutResult> all(MessageData messageData, FanOutMode mode, Duration deadline) {
+        long start = System.nanoTime();
+        List<String> pluginNameList = messageData.getPluginNameList().stream().distinct().toList();
+        Map<String, CompletableFuture<Boolean>> futures = new LinkedHashMap<>();
+        Map<String, Long> elapsed = new ConcurrentHashMap<>();
+        // 有插件失败时结束等待
+        CompletableFuture<Void> failFast = new CompletableFuture<>();
+        MessageEnvelope<MessageData> envelope = new MessageEnvelope<>(messageData, objectMapper);
         for (String pluginName : pluginNameList) {
-            Plugin plugin = PluginManager.loadPlugin(pluginName);
-            if (plugin == null) {
-                continue;
+            long begin = System.nanoTime();
+            CompletableFuture<Boolean> future = dispatch(pluginName, envelope);
+            future.whenComplete((result, e) -> {
+                elapsed.put(pluginName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+                if (mode == FanOutMode.ALL_OR_NOTHING && (e != null || !Boolean.TRUE.equals(result))) {
+                    failFast.complete(null);
+                }
+            });
+            futures.put(pluginName, future);
+        }
+        CompletableFuture<Object> done = CompletableFuture.anyOf(
+                CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])), failFast);
+        if (deadline != null) {
+            done.completeOnTimeout(EXPIRED, deadline.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        // 单个插件的异常在汇总时逐个处理
+        return done.handle((value, e) -> {
+            FanOutResult fanOutResult = new FanOutResult();
+            fanOutResult.setMode(mode);
+            for (Map.Entry<String, CompletableFuture<Boolean>> entry : futures.entrySet()) {
+                String pluginName = entry.getKey();
+                CompletableFuture<Boolean> future = entry.getValue();
+                // 到期或其他插件失败时，还没返回的调用不再等待，还在排队的不再执行
+                if (value == EXPIRED) {
+                    future.completeExceptionally(new TimeoutException("超过整体期限: " + deadline));
+                } else {
+                    future.completeExceptionally(new CancellationException("其他插件发送失败"));
+                }
+                long millis = elapsed.getOrDefault(pluginName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                PluginSendResult result = toResult(pluginName, future, millis);
+                if (result.isSuccess()) {
+                    fanOutResult.setSucceeded(fanOutResult.getSucceeded() + 1);
+                } else {
+                    fanOutResult.setFailed(fanOutResult.getFailed() + 1);
+                }
+                fanOutResult.getResults().add(result);
             }
-            MessagePlugin<MessageData> instance = plugin.instance(MessagePlugin.class);
-            if (instance == null) {
-                continue;
+            fanOutResult.setSuccess(fanOutResult.getFailed() == 0);
+            fanOutResult.setMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return fanOutResult;
+        });
+    }
+
+    private PluginSendResult toResult(String pluginName, CompletableFuture<Boolean> future, long millis) {
+        try {
+            Boolean result = future.join();
+            if (result == null) {
+                return new PluginSendResult(pluginName, PluginSendResult.Status.NOT_FOUND, null, millis, null);
             }
-            instance.send(messageData);
+            return new PluginSendResult(pluginName, result ? PluginSendResult.Status.SUCCESS : PluginSendResult.Status.FAILED,
+                    result, millis, null);
+        } catch (CancellationException e) {
+            return new PluginSendResult(pluginName, PluginSendResult.Status.CANCELLED, null, millis, e.getMessage());
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            PluginSendResult.Status status = PluginSendResult.Status.FAILED;
+            if (cause instanceof TimeoutException) {
+                status = PluginSendResult.Status.TIMEOUT;
+            } else if (cause instanceof RejectedExecutionException) {
+                status = PluginSendResult.Status.REJECTED;
+            }
+            return new PluginSendResult(pluginName, status, null, millis, cause.getMessage());
         }
     }
 
+    /**
+     * 发送消息，开启暂存时消息刷盘后就返回，由暂存负责发送和失败重试
+     *
+     * @param pluginName
+     * @param messageData
+     */
     public void send(String pluginName, MessageData messageData) {
-        Plugin plugin = PluginManager.loadPlugin(pluginName);
-        if (plugin == null) {
+        if (messageSpool.isEnabled()) {
+            if (!PluginManager.getPluginNames().contains(pluginName)) {
+                log.warn("插件不存在: " + pluginName);
+                return;
+            }
+            try {
+                messageSpool.append(pluginName, messageData).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                throw new IllegalStateException("暂存插件 " + pluginName + " 的消息失败: " + cause.getMessage(), cause);
+            }
             return;
         }
-        MessagePlugin<MessageData> instance = plugin.instance(MessagePlugin.class);
-        if (instance == null) {
-            return;
+        try {
+            dispatch(pluginName, new MessageEnvelope<>(messageData, objectMapper)).join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            log.warn("调用插件 " + pluginName + " 失败: " + cause.getMessage());
+        }
+    }
+
+    /**
+     * 攒批发送，和同一时间发给这个插件的其他消息一起调用一次sendBatch
+     *
+     * @param pluginName
+     * @param messageData
+     * @return 插件不存在时为null
+     */
+    public Boolean sendBatched(String pluginName, MessageData messageData) {
+        try {
+            return messageBatcher.submit(pluginName, messageData).join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            log.warn("调用插件 " + pluginName + " 失败: " + cause.getMessage());
+            return false;
         }
-        instance.send(messageData);
+    }
+
+    /**
+     * 异步发送，等待插件返回期间不占用线程
+     *
+     * @param pluginName
+     * @param messageData
+     * @return 插件不存在时为null
+     */
+    public CompletableFuture<Boolean> sendAsync(String pluginName, MessageData messageData) {
+        return dispatch(pluginName, new MessageEnvelope<>(messageData, objectMapper)).exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.warn("调用插件 " + pluginName + " 失败: " + cause.getMessage());
+            return false;
+        });
+    }
+
+    /**
+     * 实现了sendAsync的插件在当前线程发起调用；只实现了send的插件在插件自己的线程池里调用，慢插件只会占满自己的线程
+     *
+     * @param pluginName
+     * @param envelope
+     * @return 插件不存在或没有实现MessagePlugin时结果为null
+     */
+    private CompletableFuture<Boolean> dispatch(String pluginName, MessageEnvelope<MessageData> envelope) {
+        return pluginBulkheads.submit(pluginName, acquired -> {
+            MessagePlugin<MessageData> instance = acquired.instance(MessagePlugin.class);
+            return instance != null && ASYNC.get(instance.getClass());
+        }, acquired -> {
+            MessagePlugin<MessageData> instance = acquired.instance(MessagePlugin.class);
+            if (instance == null) {
+                return null;
+            }
+            return instance.sendEnvelope(envelope);
+        }, acquired -> {
+            MessagePlugin<MessageData> instance = acquired.instance(MessagePlugin.class);
+            if (instance == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return instance.sendAsync(envelope.getMessage());
+        });
     }
 
     public void unload(String pluginName) {
@@ -0,0 +1,197 @@
+package org.example.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.example.MessageEnvelope;
+import org.example.MessagePlugin;
+import org.example.core.PluginBulkheads;
+import org.example.model.MessageData;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * @author zhy
+ * @date 2024/9/29 11:00
+ * <p>
+ * 待发送消息的本地暂存，消息刷盘后就返回，由每个插件自己的消费线程发送，失败后从暂存里重试
+ * <p>
+ * 消息至少发送一次：发送成功后还没来得及记录checkpoint就重启的消息会再发一次
+ */
+@Slf4j
+@Component
+public class MessageSpool implements SpoolDelivery, InitializingBean, DisposableBean {
+    private final PluginBulkheads pluginBulkheads;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final Duration flushInterval;
+    private final int maxAttempts;
+    private final Duration retryBackoff;
+    private final Duration maxBackoff;
+    private final ConcurrentHashMap<String, PluginSpool> spoolMap = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    public MessageSpool(PluginBulkheads pluginBulkheads,
+                        ObjectMapper objectMapper,
+                        @Value("${message.spool.enabled:true}") boolean enabled,
+                        @Value("${message.spool.directory:~/spool}") String directory,
+                        @Value("${message.spool.segment-size:16MB}") DataSize segmentSize,
+                        @Value("${message.spool.flush-interval:5ms}") Duration flushInterval,
+                        @Value("${message.spool.max-attempts:10}") int maxAttempts,
+                        @Value("${message.spool.retry-backoff:1s}") Duration retryBackoff,
+                        @Value("${message.spool.max-backoff:1m}") Duration maxBackoff) {
+        this.pluginBulkheads = pluginBulkheads;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        String currentPath = System.getProperty("user.dir");
+        this.directory = Paths.get(directory.startsWith("~") ? currentPath + directory.substring(1) : directory);
+        this.segmentSize = (int) Math.min(segmentSize.toBytes(), Integer.MAX_VALUE);
+        this.flushInterval = flushInterval;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoff = retryBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        // 恢复上次没有发送完的消息
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> stream = Files.list(directory)) {
+                for (Path path : stream.filter(Files::isDirectory).toList()) {
+                    spoolFor(path.getFileName().toString());
+                }
+            }
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-spool-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, flushInterval.toMillis());
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 暂存一条消息
+     *
+     * @param pluginName
+     * @param messageData
+     * @return 刷盘后结束
+     */
+    public CompletableFuture<Long> append(String pluginName, MessageData messageData) {
+        try {
+            return spoolFor(pluginName).append(objectMapper.writeValueAsBytes(messageData));
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 每个插件还没有发送的字节数
+     *
+     * @return
+     */
+    public Map<String, Long> getBacklog() {
+        Map<String, Long> backlog = new ConcurrentSkipListMap<>();
+        spoolMap.forEach((name, spool) -> backlog.put(name, spool.getBacklog()));
+        return Collections.unmodifiableMap(backlog);
+    }
+
+    private PluginSpool spoolFor(String pluginName) {
+        PluginSpool spool = spoolMap.get(pluginName);
+        if (spool != null) {
+            return spool;
+        }
+        return spoolMap.computeIfAbsent(pluginName, name -> {
+            try {
+                PluginSpool created = PluginSpool.open(name, directory.resolve(name), segmentSize, this);
+                created.start("message-spool-" + name);
+                return created;
+            } catch (IOException e) {
+                throw new UncheckedIOException("打开插件 " + name + " 的暂存失败: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    private void flush() {
+        for (PluginSpool spool : spoolMap.values()) {
+            try {
+                spool.flush();
+            } catch (RuntimeException e) {
+                log.error("插件 " + spool.getPluginName() + " 的暂存刷盘失败: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public boolean deliver(String pluginName, byte[] payload) {
+        try {
+            MessageData messageData = objectMapper.readValue(payload, MessageData.class);
+            // 暂存的内容就是序列化好的消息，插件不用再序列化一次
+            MessageEnvelope<MessageData> envelope = new MessageEnvelope<>(messageData, objectMapper, payload);
+            Boolean result = pluginBulkheads.submit(pluginName, plugin -> {
+                MessagePlugin<MessageData> instance = plugin.instance(MessagePlugin.class);
+                if (instance == null) {
+                    return null;
+                }
+                return instance.sendEnvelope(envelope);
+            }).join();
+            return Boolean.TRUE.equals(result);
+        } catch (IOException e) {
+            log.error("暂存的消息无法解析: " + e.getMessage());
+            // 无法解析的消息重试也没用
+            return true;
+        } catch (RuntimeException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.warn("调用插件 " + pluginName + " 失败: " + cause.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public Duration retryBackoff() {
+        return retryBackoff;
+    }
+
+    @Override
+    public Duration maxBackoff() {
+        return maxBackoff;
+    }
+
+    @Override
+    public void destroy() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        spoolMap.values().forEach(PluginSpool::stop);
+        // 最后刷一次盘，保存checkpoint
+        flush();
+    }
+}
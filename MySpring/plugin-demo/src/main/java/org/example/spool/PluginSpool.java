@@ -0,0 +1,331 @@
+package org.example.spool;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * @author zhy
+ * @date 2024/9/29 10:30
+ * <p>
+ * 一个插件的消息暂存，目录下是按偏移量命名的段文件和消费位置checkpoint
+ * <p>
+ * 写入的消息刷盘后才返回给调用方，之后由这个插件自己的消费线程按顺序发送，
+ * 发送成功才推进checkpoint，失败按退避时间重试，重启后从checkpoint继续发送
+ */
+@Slf4j
+class PluginSpool implements Runnable {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DEAD_LETTER = "dead-letter.log";
+
+    @Getter
+    private final String pluginName;
+    private final Path directory;
+    private final int segmentSize;
+    private final SpoolDelivery delivery;
+    private final ConcurrentSkipListMap<Long, SpoolSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile SpoolSegment active;
+    /**
+     * 还没有刷盘的段，写满换段后旧段也要刷一次
+     */
+    private final Set<SpoolSegment> unflushed = new LinkedHashSet<>();
+    /**
+     * 等待刷盘的写入，key是写入后的偏移量
+     */
+    private final TreeMap<Long, List<CompletableFuture<Long>>> waiters = new TreeMap<>();
+    private long writeOffset;
+    /**
+     * 已经刷盘的偏移量，消费线程只读到这里
+     */
+    @Getter
+    private volatile long durableOffset;
+    /**
+     * 下一条要发送的消息的偏移量，映射到checkpoint文件
+     */
+    @Getter
+    private volatile long checkpoint;
+    private final MappedByteBuffer checkpointBuffer;
+    private volatile boolean checkpointDirty;
+    private volatile boolean running = true;
+    private Thread consumer;
+
+    private PluginSpool(String pluginName, Path directory, int segmentSize, SpoolDelivery delivery,
+                        MappedByteBuffer checkpointBuffer) {
+        this.pluginName = pluginName;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.delivery = delivery;
+        this.checkpointBuffer = checkpointBuffer;
+    }
+
+    /**
+     * 打开插件的暂存目录，恢复段文件和checkpoint
+     *
+     * @param pluginName
+     * @param directory
+     * @param segmentSize
+     * @param delivery
+     * @return
+     * @throws IOException
+     */
+    static PluginSpool open(String pluginName, Path directory, int segmentSize, SpoolDelivery delivery) throws IOException {
+        Files.createDirectories(directory);
+        MappedByteBuffer checkpointBuffer;
+        try (FileChannel channel = FileChannel.open(directory.resolve(CHECKPOINT),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            checkpointBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        PluginSpool spool = new PluginSpool(pluginName, directory, segmentSize, delivery, checkpointBuffer);
+        spool.recover();
+        return spool;
+    }
+
+    private void recover() throws IOException {
+        long checkpoint = checkpointBuffer.getLong(0);
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            SpoolSegment segment = SpoolSegment.open(file, baseOffset, segmentSize);
+            segments.put(baseOffset, segment);
+        }
+        if (segments.isEmpty()) {
+            active = createSegment(checkpoint);
+        } else {
+            active = segments.lastEntry().getValue();
+            // 已经发送完的段在上次退出前可能没来得及删除
+            checkpoint = Math.max(checkpoint, segments.firstKey());
+        }
+        writeOffset = active.getBaseOffset() + Math.min(active.getWritePosition(), active.getSize());
+        durableOffset = writeOffset;
+        this.checkpoint = Math.min(checkpoint, writeOffset);
+        if (writeOffset > this.checkpoint) {
+            log.info("恢复插件 " + pluginName + " 的暂存消息, 未发送: " + (writeOffset - this.checkpoint) + " 字节");
+        }
+    }
+
+    private SpoolSegment createSegment(long baseOffset) throws IOException {
+        Path path = directory.resolve(String.format("%020d", baseOffset) + SEGMENT_SUFFIX);
+        SpoolSegment segment = SpoolSegment.open(path, baseOffset, segmentSize);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    /**
+     * 写入一条消息
+     *
+     * @param payload
+     * @return 刷盘后结束，结果是消息之后的偏移量
+     * @throws IOException
+     */
+    synchronized CompletableFuture<Long> append(byte[] payload) throws IOException {
+        if (SpoolSegment.HEADER + payload.length + 4 > segmentSize) {
+            throw new IllegalArgumentException("消息太大: " + payload.length + " 字节, 段大小: " + segmentSize);
+        }
+        if (active.isSealed() || !active.append(payload)) {
+            if (!active.isSealed()) {
+                active.seal();
+            }
+            unflushed.add(active);
+            active = createSegment(active.endOffset());
+            active.append(payload);
+        }
+        unflushed.add(active);
+        writeOffset = active.getBaseOffset() + active.getWritePosition();
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        waiters.computeIfAbsent(writeOffset, k -> new ArrayList<>()).add(future);
+        return future;
+    }
+
+    /**
+     * 组提交，一次刷盘完成这段时间内所有的写入，刷盘期间不影响继续写入
+     */
+    void flush() {
+        Map<SpoolSegment, Integer> positions = new LinkedHashMap<>();
+        long offset;
+        boolean forceCheckpoint;
+        synchronized (this) {
+            if (unflushed.isEmpty() && !checkpointDirty) {
+                return;
+            }
+            for (SpoolSegment segment : unflushed) {
+                positions.put(segment, segment.getWritePosition());
+            }
+            unflushed.clear();
+            offset = writeOffset;
+            forceCheckpoint = checkpointDirty;
+            checkpointDirty = false;
+        }
+        positions.forEach(SpoolSegment::force);
+        if (forceCheckpoint) {
+            checkpointBuffer.force();
+        }
+        List<CompletableFuture<Long>> completed = new ArrayList<>();
+        synchronized (this) {
+            durableOffset = offset;
+            SortedMap<Long, List<CompletableFuture<Long>>> done = waiters.headMap(offset, true);
+            done.values().forEach(completed::addAll);
+            done.clear();
+            // 唤醒消费线程
+            notifyAll();
+        }
+        for (CompletableFuture<Long> future : completed) {
+            future.complete(offset);
+        }
+    }
+
+    /**
+     * 启动消费线程
+     *
+     * @param threadName
+     */
+    void start(String threadName) {
+        consumer = new Thread(this, threadName);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    void stop() {
+        running = false;
+        if (consumer != null) {
+            consumer.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                SpoolRecord record = next();
+                if (record == null) {
+                    synchronized (this) {
+                        if (checkpoint >= durableOffset) {
+                            wait(1000);
+                        }
+                    }
+                    continue;
+                }
+                if (record.payload().length > 0) {
+                    deliver(record);
+                }
+                commit(record.nextOffset());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("插件 " + pluginName + " 的暂存消息处理失败: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 发送一条消息，失败按退避时间重试，超过次数后写入死信文件并跳过
+     */
+    private void deliver(SpoolRecord record) throws InterruptedException {
+        Duration backoff = delivery.retryBackoff();
+        for (int attempt = 1; running; attempt++) {
+            if (delivery.deliver(pluginName, record.payload())) {
+                return;
+            }
+            if (attempt >= delivery.maxAttempts()) {
+                deadLetter(record);
+                return;
+            }
+            log.warn("插件 " + pluginName + " 发送失败, " + backoff.toMillis() + "ms后第" + (attempt + 1) + "次重试, 偏移量: " + record.offset());
+            Thread.sleep(backoff.toMillis());
+            backoff = backoff.multipliedBy(2);
+            if (backoff.compareTo(delivery.maxBackoff()) > 0) {
+                backoff = delivery.maxBackoff();
+            }
+        }
+        throw new InterruptedException("暂存已关闭");
+    }
+
+    private void deadLetter(SpoolRecord record) {
+        log.error("插件 " + pluginName + " 重试" + delivery.maxAttempts() + "次后仍然失败, 写入死信, 偏移量: " + record.offset());
+        String line = record.offset() + "\t" + new String(record.payload(), StandardCharsets.UTF_8) + "\n";
+        try {
+            Files.writeString(directory.resolve(DEAD_LETTER), line, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("写入死信失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 读取checkpoint位置的消息，只读已经刷盘的部分
+     *
+     * @return 没有新消息时返回null，段结束时返回空内容的记录
+     */
+    private SpoolRecord next() {
+        long offset = checkpoint;
+        if (offset >= durableOffset) {
+            return null;
+        }
+        Map.Entry<Long, SpoolSegment> entry = segments.floorEntry(offset);
+        if (entry == null) {
+            // checkpoint之前的段已经删除，从第一个段开始
+            return new SpoolRecord(offset, segments.firstKey(), new byte[0]);
+        }
+        SpoolSegment segment = entry.getValue();
+        int position = (int) (offset - segment.getBaseOffset());
+        byte[] payload = segment.read(position);
+        if (payload == null) {
+            // 段里剩下的内容无法识别，跳到下一个段
+            log.error("插件 " + pluginName + " 的暂存文件损坏: " + segment.getPath() + ", 位置: " + position);
+            return new SpoolRecord(offset, segment.endOffset(), new byte[0]);
+        }
+        if (payload.length == 0) {
+            return new SpoolRecord(offset, segment.endOffset(), payload);
+        }
+        return new SpoolRecord(offset, offset + SpoolSegment.HEADER + payload.length, payload);
+    }
+
+    /**
+     * 推进checkpoint，删除已经发送完的段
+     */
+    private void commit(long nextOffset) throws IOException {
+        checkpointBuffer.putLong(0, nextOffset);
+        checkpoint = nextOffset;
+        checkpointDirty = true;
+        while (true) {
+            Map.Entry<Long, SpoolSegment> first = segments.firstEntry();
+            if (first == null || first.getValue() == active || first.getValue().endOffset() > nextOffset) {
+                return;
+            }
+            synchronized (this) {
+                segments.remove(first.getKey());
+                unflushed.remove(first.getValue());
+            }
+            Files.deleteIfExists(first.getValue().getPath());
+        }
+    }
+
+    /**
+     * 还没有发送的字节数
+     *
+     * @return
+     */
+    long getBacklog() {
+        return durableOffset - checkpoint;
+    }
+
+    private record SpoolRecord(long offset, long nextOffset, byte[] payload) {
+    }
+}
@@ -0,0 +1,26 @@
+package org.example.spool;
+
+import java.time.Duration;
+
+/**
+ * @author zhy
+ * @date 2024/9/29 10:20
+ * <p>
+ * 暂存消息的发送方式和重试策略
+ */
+interface SpoolDelivery {
+    /**
+     * 发送一条暂存的消息
+     *
+     * @param pluginName
+     * @param payload
+     * @return 插件返回true才算发送成功
+     */
+    boolean deliver(String pluginName, byte[] payload);
+
+    int maxAttempts();
+
+    Duration retryBackoff();
+
+    Duration maxBackoff();
+}
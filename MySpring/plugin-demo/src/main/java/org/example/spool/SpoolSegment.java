@@ -0,0 +1,164 @@
+package org.example.spool;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * @author zhy
+ * @date 2024/9/29 10:00
+ * <p>
+ * 消息暂存的段文件，整个文件映射到内存，只追加
+ * <p>
+ * 每条记录: 长度(int) + crc32(int) + 内容；长度为0表示后面还没有写入，长度为-1表示这个段已经写满
+ */
+class SpoolSegment {
+    static final int HEADER = 8;
+    static final int END_OF_SEGMENT = -1;
+
+    @Getter
+    private final long baseOffset;
+    @Getter
+    private final int size;
+    @Getter
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    /**
+     * 下一条记录的写入位置，只在PluginSpool的锁里修改
+     */
+    @Getter
+    private int writePosition;
+    /**
+     * 已经刷到磁盘的位置
+     */
+    private int flushedPosition;
+
+    private SpoolSegment(long baseOffset, Path path, MappedByteBuffer buffer) {
+        this.baseOffset = baseOffset;
+        this.path = path;
+        this.buffer = buffer;
+        this.size = buffer.capacity();
+    }
+
+    /**
+     * 打开段文件，文件已存在时使用文件的大小，并找到最后一条完整记录之后的位置
+     *
+     * @param path
+     * @param baseOffset 第一条记录的偏移量
+     * @param size       新建文件的大小
+     * @return
+     * @throws IOException
+     */
+    static SpoolSegment open(Path path, long baseOffset, int size) throws IOException {
+        int mapSize = Files.exists(path) && Files.size(path) > 0 ? (int) Files.size(path) : size;
+        // 映射建立后关闭文件不影响映射
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            SpoolSegment segment = new SpoolSegment(baseOffset, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize));
+            segment.recover();
+            return segment;
+        }
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position + HEADER <= size) {
+            int length = buffer.getInt(position);
+            if (length == END_OF_SEGMENT) {
+                position = size;
+                break;
+            }
+            // 没有写入或写了一半的记录，之后从这里继续写
+            if (length <= 0 || position + HEADER + length > size || read(position) == null) {
+                break;
+            }
+            position += HEADER + length;
+        }
+        writePosition = position;
+        flushedPosition = position;
+    }
+
+    /**
+     * 追加一条记录，剩余空间不够时返回false，由调用方换到下一个段
+     *
+     * @param payload
+     * @return
+     */
+    boolean append(byte[] payload) {
+        // 始终给段结束标记留出位置
+        if (writePosition + HEADER + payload.length + 4 > size) {
+            return false;
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        buffer.put(writePosition + HEADER, payload);
+        buffer.putInt(writePosition + 4, (int) crc32.getValue());
+        // 长度最后写，读的时候长度不为0就说明记录已经完整
+        buffer.putInt(writePosition, payload.length);
+        writePosition += HEADER + payload.length;
+        return true;
+    }
+
+    /**
+     * 写入段结束标记，之后的记录写到下一个段
+     */
+    void seal() {
+        if (writePosition + 4 <= size) {
+            buffer.putInt(writePosition, END_OF_SEGMENT);
+        }
+        writePosition = size;
+    }
+
+    boolean isSealed() {
+        return writePosition >= size;
+    }
+
+    /**
+     * 把还没刷盘的部分写到磁盘，只由刷盘线程调用
+     *
+     * @param writePosition 刷到这个位置
+     */
+    void force(int writePosition) {
+        int position = Math.min(writePosition, size);
+        if (position > flushedPosition) {
+            buffer.force(flushedPosition, position - flushedPosition);
+            flushedPosition = position;
+        }
+    }
+
+    /**
+     * 读取position位置的记录内容
+     *
+     * @param position
+     * @return 段结束时返回空数组，没有完整记录时返回null
+     */
+    byte[] read(int position) {
+        if (position + 4 > size) {
+            return new byte[0];
+        }
+        int length = buffer.getInt(position);
+        if (length == END_OF_SEGMENT) {
+            return new byte[0];
+        }
+        if (length <= 0 || position + HEADER + length > size) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(position + HEADER, payload);
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        if ((int) crc32.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+        return payload;
+    }
+
+    long endOffset() {
+        return baseOffset + size;
+    }
+}
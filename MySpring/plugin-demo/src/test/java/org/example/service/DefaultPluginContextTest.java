@@ -0,0 +1,54 @@
+package org.example.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class DefaultPluginContextTest {
+    private final SimpleMeterRegistry hostRegistry = new SimpleMeterRegistry();
+
+    private DefaultPluginContext context(long generation) {
+        return new DefaultPluginContext("test", generation, new ObjectMapper(), null, hostRegistry);
+    }
+
+    @Test
+    void retiringOldGenerationKeepsNewMeters() {
+        DefaultPluginContext old = context(1);
+        Counter.builder("test.sent").register(old.getMeterRegistry()).increment();
+        AtomicInteger oldQueue = new AtomicInteger(5);
+        Gauge.builder("test.queue", oldQueue, AtomicInteger::get).register(old.getMeterRegistry());
+
+        // 新版本加载完成后旧版本才卸载
+        DefaultPluginContext current = context(2);
+        Counter counter = Counter.builder("test.sent").register(current.getMeterRegistry());
+        AtomicInteger queue = new AtomicInteger(7);
+        Gauge.builder("test.queue", queue, AtomicInteger::get).register(current.getMeterRegistry());
+        old.destroy();
+
+        counter.increment(3);
+        assertEquals(3, hostRegistry.get("test.sent").tag("plugin", "test").tag("generation", "2").counter().count());
+        assertEquals(7, hostRegistry.get("test.queue").tag("generation", "2").gauge().value());
+        assertTrue(hostRegistry.find("test.sent").tag("generation", "1").meters().isEmpty());
+        assertTrue(hostRegistry.find("test.queue").tag("generation", "1").meters().isEmpty());
+    }
+
+    @Test
+    void destroyRemovesAllMetersOfGeneration() {
+        DefaultPluginContext context = context(1);
+        Counter.builder("test.sent").register(context.getMeterRegistry()).increment();
+        Counter.builder("test.failed").register(context.getMeterRegistry());
+        assertEquals(2, hostRegistry.getMeters().size());
+        context.destroy();
+        assertTrue(hostRegistry.getMeters().isEmpty());
+    }
+}
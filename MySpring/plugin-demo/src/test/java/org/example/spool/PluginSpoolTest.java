@@ -0,0 +1,197 @@
+package org.example.spool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginSpoolTest {
+    /**
+     * 每条"mN"记录占10字节，一个段放两条
+     */
+    private static final int SEGMENT_SIZE = 24;
+
+    @TempDir
+    Path directory;
+    private final List<PluginSpool> spools = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        spools.forEach(PluginSpool::stop);
+    }
+
+    private static class RecordingDelivery implements SpoolDelivery {
+        private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+        private volatile boolean succeed = true;
+
+        @Override
+        public boolean deliver(String pluginName, byte[] payload) {
+            delivered.add(new String(payload, StandardCharsets.UTF_8));
+            return succeed;
+        }
+
+        @Override
+        public int maxAttempts() {
+            return 3;
+        }
+
+        @Override
+        public Duration retryBackoff() {
+            return Duration.ofMillis(1);
+        }
+
+        @Override
+        public Duration maxBackoff() {
+            return Duration.ofMillis(2);
+        }
+
+        String next() throws InterruptedException {
+            return delivered.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private PluginSpool open(SpoolDelivery delivery) throws IOException {
+        PluginSpool spool = PluginSpool.open("test", directory, SEGMENT_SIZE, delivery);
+        spools.add(spool);
+        return spool;
+    }
+
+    private static void append(PluginSpool spool, String... messages) throws Exception {
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+        for (String message : messages) {
+            futures.add(spool.append(message.getBytes(StandardCharsets.UTF_8)));
+        }
+        spool.flush();
+        for (CompletableFuture<Long> future : futures) {
+            assertTrue(future.isDone());
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "等待超时");
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.filter(path -> path.toString().endsWith(".seg")).count();
+        }
+    }
+
+    @Test
+    void appendCompletesOnlyAfterFlush() throws Exception {
+        PluginSpool spool = open(new RecordingDelivery());
+        CompletableFuture<Long> future = spool.append("m1".getBytes(StandardCharsets.UTF_8));
+        assertFalse(future.isDone());
+        assertEquals(0, spool.getDurableOffset());
+        spool.flush();
+        assertEquals(10L, future.get());
+        assertEquals(10, spool.getBacklog());
+    }
+
+    @Test
+    void deliversInOrderAndDeletesSentSegments() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        PluginSpool spool = open(delivery);
+        append(spool, "m1", "m2", "m3", "m4", "m5");
+        assertEquals(3, segmentCount());
+        spool.start("spool-test");
+        for (String expected : List.of("m1", "m2", "m3", "m4", "m5")) {
+            assertEquals(expected, delivery.next());
+        }
+        await(() -> spool.getBacklog() == 0);
+        // 正在写入的段保留
+        spool.flush();
+        assertEquals(1, segmentCount());
+    }
+
+    @Test
+    void restartResumesFromCheckpoint() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        PluginSpool spool = open(delivery);
+        append(spool, "m1", "m2");
+        spool.start("spool-test");
+        assertEquals("m1", delivery.next());
+        assertEquals("m2", delivery.next());
+        await(() -> spool.getBacklog() == 0);
+        spool.stop();
+        spool.flush();
+        append(spool, "m3", "m4");
+
+        RecordingDelivery afterRestart = new RecordingDelivery();
+        PluginSpool reopened = open(afterRestart);
+        assertEquals(spool.getCheckpoint(), reopened.getCheckpoint());
+        // m3换到了第二个段，第一个段末尾没用的4字节也算在内
+        assertEquals(24, reopened.getBacklog());
+        reopened.start("spool-test");
+        assertEquals("m3", afterRestart.next());
+        assertEquals("m4", afterRestart.next());
+        assertNull(afterRestart.delivered.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void corruptedRecordSkipsRestOfSegment() throws Exception {
+        PluginSpool spool = open(new RecordingDelivery());
+        append(spool, "m1", "m2", "m3");
+        spool.stop();
+        // 第一个段的第二条记录内容损坏
+        Path first = directory.resolve(String.format("%020d", 0) + ".seg");
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("X".getBytes(StandardCharsets.UTF_8)), 10 + 8);
+        }
+
+        RecordingDelivery delivery = new RecordingDelivery();
+        PluginSpool reopened = open(delivery);
+        reopened.start("spool-test");
+        assertEquals("m1", delivery.next());
+        assertEquals("m3", delivery.next());
+        await(() -> reopened.getBacklog() == 0);
+        assertNull(delivery.delivered.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void failedMessagesGoToDeadLetter() throws Exception {
+        RecordingDelivery delivery = new RecordingDelivery();
+        delivery.succeed = false;
+        PluginSpool spool = open(delivery);
+        append(spool, "m1");
+        spool.start("spool-test");
+        for (int i = 0; i < delivery.maxAttempts(); i++) {
+            assertEquals("m1", delivery.next());
+        }
+        await(() -> spool.getBacklog() == 0);
+        assertNull(delivery.delivered.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals("0\tm1\n", Files.readString(directory.resolve("dead-letter.log")));
+    }
+
+    @Test
+    void rejectsMessageLargerThanSegment() throws IOException {
+        PluginSpool spool = open(new RecordingDelivery());
+        assertThrows(IllegalArgumentException.class, () -> spool.append(new byte[SEGMENT_SIZE]));
+    }
+}
@@ -0,0 +1,111 @@
+package org.example.spool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class SpoolSegmentTest {
+    @TempDir
+    Path directory;
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(Path path, int position, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(buffer, position);
+        }
+    }
+
+    @Test
+    void appendAndRead() throws IOException {
+        SpoolSegment segment = SpoolSegment.open(directory.resolve("0.seg"), 0, 1024);
+        assertTrue(segment.append(bytes("first")));
+        assertTrue(segment.append(bytes("second")));
+        assertArrayEquals(bytes("first"), segment.read(0));
+        assertArrayEquals(bytes("second"), segment.read(SpoolSegment.HEADER + 5));
+        // 还没有写入的位置
+        assertNull(segment.read(segment.getWritePosition()));
+    }
+
+    @Test
+    void reopenContinuesAfterLastRecord() throws IOException {
+        Path path = directory.resolve("0.seg");
+        SpoolSegment segment = SpoolSegment.open(path, 0, 1024);
+        segment.append(bytes("first"));
+        segment.append(bytes("second"));
+        segment.force(segment.getWritePosition());
+
+        SpoolSegment reopened = SpoolSegment.open(path, 0, 4096);
+        assertEquals(1024, reopened.getSize());
+        assertEquals(segment.getWritePosition(), reopened.getWritePosition());
+        assertTrue(reopened.append(bytes("third")));
+        assertArrayEquals(bytes("third"), reopened.read(segment.getWritePosition()));
+    }
+
+    @Test
+    void recoveryStopsAtCorruptedRecord() throws IOException {
+        Path path = directory.resolve("0.seg");
+        SpoolSegment segment = SpoolSegment.open(path, 0, 1024);
+        segment.append(bytes("first"));
+        int second = segment.getWritePosition();
+        segment.append(bytes("second"));
+        segment.append(bytes("third"));
+        segment.force(segment.getWritePosition());
+        // 第二条记录的内容损坏，crc对不上
+        write(path, second + SpoolSegment.HEADER, ByteBuffer.wrap(bytes("X")));
+
+        SpoolSegment reopened = SpoolSegment.open(path, 0, 1024);
+        assertNull(reopened.read(second));
+        assertEquals(second, reopened.getWritePosition());
+        assertArrayEquals(bytes("first"), reopened.read(0));
+    }
+
+    @Test
+    void recoveryIgnoresTornRecord() throws IOException {
+        Path path = directory.resolve("0.seg");
+        SpoolSegment segment = SpoolSegment.open(path, 0, 64);
+        segment.append(bytes("first"));
+        int torn = segment.getWritePosition();
+        segment.force(torn);
+        // 长度写入了但超出文件，相当于写了一半
+        write(path, torn, ByteBuffer.allocate(4).putInt(0, 1000));
+
+        SpoolSegment reopened = SpoolSegment.open(path, 0, 64);
+        assertEquals(torn, reopened.getWritePosition());
+        assertNull(reopened.read(torn));
+        assertTrue(reopened.append(bytes("second")));
+        assertArrayEquals(bytes("second"), reopened.read(torn));
+    }
+
+    @Test
+    void fullSegmentIsSealed() throws IOException {
+        Path path = directory.resolve("0.seg");
+        SpoolSegment segment = SpoolSegment.open(path, 100, 32);
+        // 8 + 10，再加一条就放不下段结束标记
+        assertTrue(segment.append(new byte[10]));
+        assertFalse(segment.append(new byte[10]));
+        segment.seal();
+        assertTrue(segment.isSealed());
+        assertArrayEquals(new byte[0], segment.read(18));
+        assertEquals(132, segment.endOffset());
+        segment.force(segment.getWritePosition());
+
+        SpoolSegment reopened = SpoolSegment.open(path, 100, 32);
+        assertTrue(reopened.isSealed());
+        assertFalse(reopened.append(new byte[1]));
+    }
+}
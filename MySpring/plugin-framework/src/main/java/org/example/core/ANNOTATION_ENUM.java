@@ -1,6 +1,7 @@
 package org.example.core;
 
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Controller;
 import org.springframework.stereotype.Repository;
@@ -17,7 +18,7 @@ public enum ANNOTATION_ENUM {
     SERVICE("Service", Service.class, true),
     CONTROLLER("Controller", Controller.class, true),
     REST_CONTROLLER("RestController", RestController.class, true),
-    CONFIGURATION("Configuration", RestController.class, true),
+    CONFIGURATION("Configuration", Configuration.class, true),
     BEAN("Bean", Bean.class, true),
     OTHER("Other", Object.class, false);
 
@@ -42,4 +43,19 @@ public enum ANNOTATION_ENUM {
     public boolean isAnnotation() {
         return isAnnotation;
     }
+
+    /**
+     * 根据注解类名查找
+     *
+     * @param annotationClassName
+     * @return
+     */
+    public static ANNOTATION_ENUM of(String annotationClassName) {
+        for (ANNOTATION_ENUM value : values()) {
+            if (value.isAnnotation && value.annotationClass.getName().equals(annotationClassName)) {
+                return value;
+            }
+        }
+        return OTHER;
+    }
 }
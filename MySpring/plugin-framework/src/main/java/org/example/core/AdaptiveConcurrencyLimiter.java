@@ -0,0 +1,106 @@
+package org.example.core;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author zhy
+ * @date 2024/9/30 10:20
+ * <p>
+ * 插件的自适应并发数(AIMD)
+ * <p>
+ * 调用成功并且耗时没有超过阈值时并发上限加1/limit，相当于每一轮加1；
+ * 调用失败或变慢时上限乘以backoffRatio，供应商开始变慢时很快降下来，不等到被限流
+ */
+public class AdaptiveConcurrencyLimiter {
+    @Getter
+    private final String pluginName;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /**
+     * 当前的并发上限，double按位存放，用CAS更新
+     */
+    private final AtomicLong limitBits;
+    private volatile Rule rule;
+    /**
+     * 超过并发上限被拒绝的调用次数
+     */
+    @Getter
+    private final LongAdder rejections = new LongAdder();
+
+    AdaptiveConcurrencyLimiter(String pluginName, int minLimit, int maxLimit, Duration latencyThreshold, double backoffRatio) {
+        this.pluginName = pluginName;
+        update(minLimit, maxLimit, latencyThreshold, backoffRatio);
+        // 从上限开始，变慢或失败后再往下降
+        this.limitBits = new AtomicLong(Double.doubleToLongBits(rule.maxLimit()));
+    }
+
+    void update(int minLimit, int maxLimit, Duration latencyThreshold, double backoffRatio) {
+        int min = Math.max(1, minLimit);
+        rule = new Rule(min, Math.max(min, maxLimit), latencyThreshold.toNanos(), backoffRatio);
+    }
+
+    /**
+     * 开始一次调用
+     *
+     * @return 已经达到并发上限时返回false
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) getLimit()) {
+                rejections.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 结束一次调用，根据结果调整并发上限
+     *
+     * @param latencyNanos
+     * @param success
+     */
+    void release(long latencyNanos, boolean success) {
+        inFlight.decrementAndGet();
+        Rule rule = this.rule;
+        boolean overloaded = !success || (rule.latencyThreshold() > 0 && latencyNanos > rule.latencyThreshold());
+        while (true) {
+            long bits = limitBits.get();
+            double limit = Double.longBitsToDouble(bits);
+            double next = overloaded
+                    ? Math.max(rule.minLimit(), limit * rule.backoffRatio())
+                    : Math.min(rule.maxLimit(), limit + 1 / limit);
+            if (next == limit || limitBits.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 调用没有真正发出，只释放并发数
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    public double getLimit() {
+        double limit = Double.longBitsToDouble(limitBits.get());
+        Rule rule = this.rule;
+        // 修改配置后超出范围的部分立即生效
+        return Math.min(rule.maxLimit(), Math.max(rule.minLimit(), limit));
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    private record Rule(int minLimit, int maxLimit, long latencyThreshold, double backoffRatio) {
+    }
+}
@@ -0,0 +1,32 @@
+package org.example.core;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 11:40
+ * <p>
+ * /actuator/circuitbreakers，插件和外部地址的熔断状态
+ */
+@Component
+@Endpoint(id = "circuitbreakers")
+public class CircuitBreakerEndpoint {
+    private final PluginCircuitBreakers pluginCircuitBreakers;
+
+    public CircuitBreakerEndpoint(PluginCircuitBreakers pluginCircuitBreakers) {
+        this.pluginCircuitBreakers = pluginCircuitBreakers;
+    }
+
+    @ReadOperation
+    public Map<String, Map<String, CircuitBreakerStats>> circuitBreakers() {
+        Map<String, Map<String, CircuitBreakerStats>> result = new LinkedHashMap<>();
+        result.put("plugins", pluginCircuitBreakers.getPluginStats());
+        result.put("hosts", pluginCircuitBreakers.getHostStats());
+        return result;
+    }
+}
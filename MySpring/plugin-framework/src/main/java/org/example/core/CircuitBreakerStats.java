@@ -0,0 +1,19 @@
+package org.example.core;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 10:40
+ * <p>
+ * 熔断器的状态
+ *
+ * @param name
+ * @param state
+ * @param calls        统计时间内的调用数
+ * @param failureRate  统计时间内的失败率，调用数不够时为-1
+ * @param slowCallRate 统计时间内的慢调用率，调用数不够时为-1
+ * @param notPermitted 熔断期间被拒绝的调用次数
+ * @param opened       熔断的次数
+ */
+public record CircuitBreakerStats(String name, PluginCircuitBreaker.State state, int calls, float failureRate,
+                                  float slowCallRate, long notPermitted, long opened) {
+}
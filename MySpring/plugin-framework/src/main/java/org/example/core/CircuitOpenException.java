@@ -0,0 +1,21 @@
+package org.example.core;
+
+import lombok.Getter;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 10:30
+ * <p>
+ * 熔断中，调用没有发出
+ */
+public class CircuitOpenException extends RejectedExecutionException {
+    @Getter
+    private final String circuitName;
+
+    public CircuitOpenException(String circuitName) {
+        super(circuitName + " 已熔断");
+        this.circuitName = circuitName;
+    }
+}
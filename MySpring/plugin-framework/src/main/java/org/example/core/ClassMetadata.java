@@ -0,0 +1,248 @@
+package org.example.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author zhy
+ * @date 2024/9/11 14:20
+ * <p>
+ * 从class文件字节码里读取的类信息
+ * <p>
+ * 只解析常量池、类名、父类、接口和类上的运行时注解，不需要定义类就能判断是不是Spring bean
+ */
+record ClassMetadata(String className, int access, String superName, String[] interfaces, ANNOTATION_ENUM annotation) {
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_ABSTRACT = 0x0400;
+    /**
+     * 描述符和泛型签名里的类型，比如(Ljava/lang/String;)V、Ljava/util/List<Ljava/lang/Long;>;
+     */
+    private static final Pattern DESCRIPTOR_TYPE = Pattern.compile("L([\\w/$]+)[;<]");
+
+    /**
+     * 是否接口或抽象类
+     *
+     * @return
+     */
+    boolean isAbstract() {
+        return (access & (ACC_INTERFACE | ACC_ABSTRACT)) != 0;
+    }
+
+    /**
+     * 根据已经定义的类生成类信息，用于编译时生成的索引
+     *
+     * @param clazz
+     * @param annotation 索引里记录的注解
+     * @return
+     */
+    static ClassMetadata of(Class<?> clazz, ANNOTATION_ENUM annotation) {
+        Class<?> superclass = clazz.getSuperclass();
+        String[] interfaces = Arrays.stream(clazz.getInterfaces()).map(Class::getName).toArray(String[]::new);
+        // Modifier.INTERFACE和Modifier.ABSTRACT的值和class文件的access_flags一致
+        int access = clazz.getModifiers() & (ACC_INTERFACE | ACC_ABSTRACT);
+        ClassMetadata metadata = new ClassMetadata(clazz.getName(), access,
+                superclass == null ? null : superclass.getName(), interfaces, annotation);
+        if (metadata.isAbstract()) {
+            return new ClassMetadata(clazz.getName(), access, metadata.superName(), interfaces, ANNOTATION_ENUM.OTHER);
+        }
+        return metadata;
+    }
+
+    /**
+     * 解析class文件
+     *
+     * @param bytes
+     * @return
+     * @throws IOException
+     */
+    static ClassMetadata read(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        ConstantPool pool = ConstantPool.read(in);
+        String[] utf8 = pool.utf8();
+        int[] classIndex = pool.classIndex();
+        int access = in.readUnsignedShort();
+        String className = className(utf8, classIndex, in.readUnsignedShort());
+        String superName = className(utf8, classIndex, in.readUnsignedShort());
+        String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = className(utf8, classIndex, in.readUnsignedShort());
+        }
+        // fields, methods
+        skipMembers(in);
+        skipMembers(in);
+        ANNOTATION_ENUM annotation = ANNOTATION_ENUM.OTHER;
+        int attributeCount = in.readUnsignedShort();
+        for (int i = 0; i < attributeCount; i++) {
+            String name = utf8[in.readUnsignedShort()];
+            int length = in.readInt();
+            if ("RuntimeVisibleAnnotations".equals(name)) {
+                annotation = readAnnotation(in, utf8);
+            } else {
+                in.skipBytes(length);
+            }
+        }
+        ClassMetadata metadata = new ClassMetadata(className, access, superName, interfaces, annotation);
+        // 接口和抽象类不作为bean
+        if (metadata.isAbstract()) {
+            return new ClassMetadata(className, access, superName, interfaces, ANNOTATION_ENUM.OTHER);
+        }
+        return metadata;
+    }
+
+    /**
+     * class文件引用的类所在的包，包括常量池里的类和字段、方法描述符、泛型签名里的类型，
+     * 字符串常量里形如描述符的内容也会算进去，只会多不会少
+     *
+     * @param bytes
+     * @return 包名，不包括默认包
+     * @throws IOException
+     */
+    static Set<String> referencedPackages(byte[] bytes) throws IOException {
+        ConstantPool pool = ConstantPool.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+        Set<String> packages = new HashSet<>();
+        for (int i = 1; i < pool.classIndex().length; i++) {
+            if (pool.classIndex()[i] != 0) {
+                String name = pool.utf8()[pool.classIndex()[i]];
+                if (name.startsWith("[")) {
+                    addDescriptorPackages(name, packages);
+                } else {
+                    addPackage(name, packages);
+                }
+            }
+        }
+        for (String value : pool.utf8()) {
+            if (value != null && value.indexOf(';') > 0) {
+                addDescriptorPackages(value, packages);
+            }
+        }
+        return packages;
+    }
+
+    private static void addDescriptorPackages(String descriptor, Set<String> packages) {
+        Matcher matcher = DESCRIPTOR_TYPE.matcher(descriptor);
+        while (matcher.find()) {
+            addPackage(matcher.group(1), packages);
+        }
+    }
+
+    private static void addPackage(String internalName, Set<String> packages) {
+        int index = internalName.lastIndexOf('/');
+        if (index > 0) {
+            packages.add(internalName.substring(0, index).replace('/', '.'));
+        }
+    }
+
+    private static String className(String[] utf8, int[] classIndex, int index) {
+        if (index == 0) {
+            return null;
+        }
+        return utf8[classIndex[index]].replace('/', '.');
+    }
+
+    private static void skipMembers(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            // access_flags, name_index, descriptor_index
+            in.skipBytes(6);
+            int attributeCount = in.readUnsignedShort();
+            for (int j = 0; j < attributeCount; j++) {
+                in.skipBytes(2);
+                in.skipBytes(in.readInt());
+            }
+        }
+    }
+
+    /**
+     * 读取类上的注解，按ANNOTATION_ENUM的顺序取第一个匹配的
+     */
+    private static ANNOTATION_ENUM readAnnotation(DataInputStream in, String[] utf8) throws IOException {
+        ANNOTATION_ENUM result = ANNOTATION_ENUM.OTHER;
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            String descriptor = utf8[in.readUnsignedShort()];
+            skipElementValuePairs(in);
+            ANNOTATION_ENUM annotation = ANNOTATION_ENUM.of(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+            if (annotation.ordinal() < result.ordinal()) {
+                result = annotation;
+            }
+        }
+        return result;
+    }
+
+    private static void skipElementValuePairs(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.skipBytes(2);
+            skipElementValue(in);
+        }
+    }
+
+    private static void skipElementValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 'e' -> in.skipBytes(4);
+            case '@' -> {
+                in.skipBytes(2);
+                skipElementValuePairs(in);
+            }
+            case '[' -> {
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; i++) {
+                    skipElementValue(in);
+                }
+            }
+            default -> in.skipBytes(2);
+        }
+    }
+
+    /**
+     * 常量池里的Utf8和Class，其他类型的常量跳过
+     *
+     * @param utf8       下标 -> Utf8常量
+     * @param classIndex 下标 -> Class常量指向的Utf8下标，不是Class常量时为0
+     */
+    private record ConstantPool(String[] utf8, int[] classIndex) {
+
+        /**
+         * 读取魔数、版本号和常量池，读完后in停在access_flags
+         */
+        static ConstantPool read(DataInputStream in) throws IOException {
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IOException("不是class文件");
+            }
+            // minor_version, major_version
+            in.skipBytes(4);
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classIndex = new int[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    // Utf8
+                    case 1 -> utf8[i] = in.readUTF();
+                    // Class
+                    case 7 -> classIndex[i] = in.readUnsignedShort();
+                    // String, MethodType, Module, Package
+                    case 8, 16, 19, 20 -> in.skipBytes(2);
+                    // MethodHandle
+                    case 15 -> in.skipBytes(3);
+                    // Integer, Float, Fieldref, Methodref, InterfaceMethodref, NameAndType, Dynamic, InvokeDynamic
+                    case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                    // Long, Double 占两个位置
+                    case 5, 6 -> {
+                        in.skipBytes(8);
+                        i++;
+                    }
+                    default -> throw new IOException("无法识别的常量池类型: " + tag);
+                }
+            }
+            return new ConstantPool(utf8, classIndex);
+        }
+    }
+}
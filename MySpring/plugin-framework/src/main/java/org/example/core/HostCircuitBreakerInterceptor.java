@@ -0,0 +1,54 @@
+package org.example.core;
+
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 11:20
+ * <p>
+ * 按外部地址熔断的RestTemplate拦截器，熔断中直接抛出CircuitOpenException，不建立连接；
+ * 连接失败、超时和5xx响应算失败
+ */
+public class HostCircuitBreakerInterceptor implements ClientHttpRequestInterceptor {
+    private final PluginCircuitBreakers pluginCircuitBreakers;
+
+    public HostCircuitBreakerInterceptor(PluginCircuitBreakers pluginCircuitBreakers) {
+        this.pluginCircuitBreakers = pluginCircuitBreakers;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        URI uri = request.getURI();
+        String host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        PluginCircuitBreaker circuitBreaker = host == null ? null : pluginCircuitBreakers.forHost(host);
+        if (circuitBreaker == null) {
+            return execution.execute(request, body);
+        }
+        PluginCircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            throw new CircuitOpenException(circuitBreaker.getName());
+        }
+        long start = System.nanoTime();
+        ClientHttpResponse response = null;
+        boolean serverError;
+        try {
+            response = execution.execute(request, body);
+            // 读状态码也可能抛IOException，放在一起保证拿到的许可一定结束
+            serverError = response.getStatusCode().is5xxServerError();
+        } catch (IOException | RuntimeException e) {
+            permit.onComplete(System.nanoTime() - start, e, false);
+            if (response != null) {
+                response.close();
+            }
+            throw e;
+        }
+        permit.onComplete(System.nanoTime() - start, null, serverError);
+        return response;
+    }
+}
@@ -6,13 +6,20 @@ import lombok.extern.slf4j.Slf4j;
 import org.example.util.SpringUtil;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.beans.factory.support.BeanDefinitionBuilder;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
-import java.net.URL;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -24,61 +31,156 @@ import java.util.jar.JarFile;
  */
 @Slf4j
 public class Plugin {
+    /**
+     * 扫描jar的线程池，大小和cpu核数一致
+     */
+    private static final ForkJoinPool LOAD_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final AtomicLong VERSION = new AtomicLong();
+
+    @Setter
+    @Getter
+    private String name;
+
     @Setter
     @Getter
     private String md5;
 
+    /**
+     * 插件版本号，同一个插件的新旧版本同时存在时用来区分容器
+     */
+    @Getter
+    private final long version = VERSION.incrementAndGet();
+
+    /**
+     * 引用计数，正在执行的调用数加上插件本身的1，旧版本下线时去掉自己的1，等调用都结束减到0时才卸载
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    /**
+     * 最近一次使用的时间，用来淘汰空闲的插件
+     */
+    @Getter
+    private volatile long lastUsedNanos = System.nanoTime();
+    private final AtomicBoolean retired = new AtomicBoolean();
+    private final AtomicBoolean unloaded = new AtomicBoolean();
+
+    /**
+     * 插件jar和依赖jar的文件状态
+     */
+    @Setter
+    @Getter
+    private List<PluginFileState> fileStates;
+
+    /**
+     * 插件目录的变更计数器，以及加载时看到的计数值
+     */
+    private volatile AtomicLong changeCounter;
+    private volatile long changeCount;
+
     @Getter
     private ConcurrentHashMap<String, PluginInfo> cacheClass = new ConcurrentHashMap<>();
 
-    private PluginClassLoader classLoader;
+    private volatile PluginClassLoader classLoader;
+    private PluginLeakDetector.LoaderReference loaderReference;
+
+    /**
+     * 插件自己的Spring容器，父容器是主程序的容器
+     */
+    private volatile PluginApplicationContext context;
+
+    /**
+     * 类型 -> 实现类，加载时建立，之后不再修改
+     */
+    private volatile Map<String, PluginInfo> implementations = Map.of();
 
     /**
      * 加载插件
      *
-     * @param file
+     * @param files      插件的jar，按顺序查找类
+     * @param libraries  依赖jar和md5，能共享的交给共享库加载，其他的由插件自己加载
+     * @param indexCache 扫描结果缓存，可以为null
      * @return
      */
-    public boolean load(File file) {
+    public boolean load(List<File> files, Map<File, String> libraries, PluginIndexCache indexCache) {
         // jar文件有更新
-        PluginClassLoader classLoader = new PluginClassLoader();
+        PluginClassLoader classLoader = new PluginClassLoader("plugin-" + name + "#" + version);
+        loaderReference = PluginLeakDetector.track(name, classLoader);
         try {
-            URL url = new URL("jar:file:" + file.getAbsolutePath() + "!/");
-            classLoader.addURL(url);
             this.classLoader = classLoader;
+            for (File file : files) {
+                classLoader.addJar(file);
+            }
+            Map<File, SharedLibraryClassLoader> sharedLibraries = libraries.isEmpty() ? Map.of()
+                    : SharedLibraries.getInstance().share(name, libraries);
+            for (File library : libraries.keySet()) {
+                SharedLibraryClassLoader sharedLibrary = sharedLibraries.get(library);
+                if (sharedLibrary != null) {
+                    classLoader.addSharedLibrary(sharedLibrary);
+                } else {
+                    classLoader.addLibrary(library);
+                }
+            }
 //            SpringUtil.setProxyClassLoader(classLoader);
             // 获取jar文件
-            JarFile jarFile = classLoader.getJarFile();
-            Enumeration<JarEntry> entries = jarFile.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry jarEntry = entries.nextElement();
-                if (!jarEntry.getName().endsWith(".class")) {
-                    continue;
+            List<JarFile> jarFiles = classLoader.getJarFiles();
+            PluginBuildIndex buildIndex = PluginBuildIndex.read(jarFiles);
+            PluginIndex index = buildIndex != null || indexCache == null || md5 == null ? null : indexCache.read(md5);
+            List<PluginInfo> pluginInfos;
+            if (buildIndex != null) {
+                // 编译时生成了索引，只定义索引里的类，不需要扫描jar
+                pluginInfos = LOAD_POOL.submit(() -> buildIndex.entries().entrySet().parallelStream()
+                        .map(entry -> define(classLoader, entry.getKey(), PluginBuildIndex.annotation(entry.getValue())))
+                        .toList()).get();
+            } else if (index != null) {
+                // 命中缓存，只需要定义bean类
+                pluginInfos = LOAD_POOL.submit(() -> index.classes().parallelStream()
+                        .map(metadata -> define(classLoader, metadata))
+                        .toList()).get();
+            } else {
+                List<Map.Entry<JarFile, JarEntry>> classEntries = jarFiles.stream()
+                        .flatMap(jarFile -> jarFile.stream()
+                                .filter(jarEntry -> jarEntry.getName().endsWith(".class"))
+                                .map(jarEntry -> Map.entry(jarFile, jarEntry)))
+                        .toList();
+                // 并发解压、解析字节码、定义bean类，结果按jar里的顺序返回
+                pluginInfos = LOAD_POOL.submit(() -> classEntries.parallelStream()
+                        .map(entry -> scan(classLoader, entry.getKey(), entry.getValue()))
+                        .toList()).get();
+                if (indexCache != null && md5 != null) {
+                    indexCache.write(md5, PluginIndex.of(pluginInfos.stream().map(pluginInfo -> pluginInfo.metadata).toList()));
                 }
-                String className = jarEntry.getName().replace("/", ".");
-                className = className.substring(0, className.length() - 6);
-                // 此处无需双亲委派，所以使用用findClass而不是loadClass
-                Class<?> clazz = classLoader.findClass(className);
-                PluginInfo pluginInfo = new PluginInfo();
-                pluginInfo.clazz = clazz;
-                ANNOTATION_ENUM annotation = classLoader.getAnnotation(clazz);
+            }
+            // 插件的bean注册到自己的容器里，新旧版本的bean互不影响，卸载时关闭容器即可
+            PluginApplicationContext context = new PluginApplicationContext();
+            context.setId("plugin-" + name + "#" + version);
+            context.setParent(SpringUtil.getApplicationContext());
+            context.setClassLoader(classLoader);
+            AnnotationConfigUtils.registerAnnotationConfigProcessors(context);
+            this.context = context;
+            ApplicationContext parent = context.getParent();
+            if (parent != null) {
+                // 主程序提供给插件的服务
+                parent.getBeanProvider(PluginContextCustomizer.class).orderedStream()
+                        .forEach(customizer -> customizer.customize(this, context));
+            }
+            // bean按jar里的顺序依次注册，和并发的执行顺序无关
+            for (PluginInfo pluginInfo : pluginInfos) {
+                String className = pluginInfo.metadata.className();
+                ANNOTATION_ENUM annotation = pluginInfo.metadata.annotation();
                 if (annotation.isAnnotation()) {
-                    if (SpringUtil.containsBean(className)) {
-                        SpringUtil.removeBean(className);
-                    }
+                    pluginInfo.beanName = className;
                     pluginInfo.isSpringBeanClass = true;
-                    BeanDefinitionBuilder beanDefinitionBuilder = BeanDefinitionBuilder.genericBeanDefinition(clazz);
+                    BeanDefinitionBuilder beanDefinitionBuilder = BeanDefinitionBuilder.genericBeanDefinition(pluginInfo.clazz);
                     BeanDefinition beanDefinition = beanDefinitionBuilder.getRawBeanDefinition();
                     beanDefinition.setScope("singleton");
-                    SpringUtil.registerBean(className, beanDefinition);
-                    if (annotation == ANNOTATION_ENUM.CONTROLLER || annotation == ANNOTATION_ENUM.REST_CONTROLLER) {
-                        SpringUtil.resolveController(className);
-                    }
-                    log.info("注册bean: " + className);
+                    context.registerBeanDefinition(pluginInfo.beanName, beanDefinition);
+                    log.info("注册bean: " + pluginInfo.beanName);
                 }
                 cacheClass.put(className, pluginInfo);
             }
-            log.info("加载插件完成: " + jarFile.getName());
+            // 所有bean定义注册完后统一刷新一次
+            context.refresh();
+            implementations = indexImplementations(pluginInfos);
+            log.info("加载插件完成: " + name + ", " + files);
             return true;
         } catch (Exception e) {
             log.error("加载插件失败: " + e.getMessage());
@@ -86,117 +188,362 @@ public class Plugin {
         }
     }
 
+    /**
+     * 发布插件，注册插件里的Controller，替换旧版本的映射
+     *
+     * @return
+     */
+    boolean publish() {
+        List<Object> handlers = new ArrayList<>();
+        try {
+            for (PluginInfo pluginInfo : cacheClass.values()) {
+                ANNOTATION_ENUM annotation = pluginInfo.metadata.annotation();
+                if (annotation == ANNOTATION_ENUM.CONTROLLER || annotation == ANNOTATION_ENUM.REST_CONTROLLER) {
+                    handlers.add(context.getBean(pluginInfo.beanName));
+                }
+            }
+        } catch (Exception e) {
+            log.error("发布插件失败: " + name + ", " + e.getMessage());
+            return false;
+        }
+        return PluginControllerRegistry.publish(this, handlers);
+    }
+
+    /**
+     * 取消发布，注销插件里的Controller
+     */
+    void unpublish() {
+        PluginControllerRegistry.unpublish(this);
+    }
+
+    /**
+     * 开始一次调用，调用结束后必须调用release
+     *
+     * @return 插件已经被新版本替换或已卸载时返回false
+     */
+    public boolean acquire() {
+        while (true) {
+            int count = references.get();
+            // 先判断再CAS，下线时计数会变化，CAS失败后重新判断
+            if (count == 0 || retired.get()) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                touch();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 记录使用时间
+     */
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * 正在执行的调用数
+     *
+     * @return
+     */
+    public int getInFlight() {
+        int count = references.get();
+        return retired.get() ? count : Math.max(0, count - 1);
+    }
+
+    /**
+     * 插件classLoader占用的元空间估算值
+     *
+     * @return
+     */
+    public long getMetaspaceBytes() {
+        return loaderReference == null ? 0 : loaderReference.getMetaspaceBytes();
+    }
+
+    /**
+     * 结束一次调用
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            unload();
+        }
+    }
+
+    /**
+     * 是否已经卸载
+     *
+     * @return
+     */
+    boolean isUnloaded() {
+        return unloaded.get();
+    }
+
+    /**
+     * 下线插件，等正在执行的调用都结束后卸载
+     */
+    void retire() {
+        if (retired.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    /**
+     * 读取字节码判断注解，只有Spring bean才需要定义类，其他类在使用时再定义
+     *
+     * @param classLoader
+     * @param jarFile
+     * @param jarEntry
+     * @return
+     */
+    private PluginInfo scan(PluginClassLoader classLoader, JarFile jarFile, JarEntry jarEntry) {
+        try (InputStream inputStream = jarFile.getInputStream(jarEntry)) {
+            byte[] bytes = inputStream.readAllBytes();
+            PluginInfo pluginInfo = new PluginInfo();
+            pluginInfo.metadata = ClassMetadata.read(bytes);
+            if (pluginInfo.metadata.annotation().isAnnotation()) {
+                pluginInfo.clazz = classLoader.definePluginClass(pluginInfo.metadata.className(), bytes, jarFile);
+            }
+            return pluginInfo;
+        } catch (IOException e) {
+            throw new UncheckedIOException(jarEntry.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 根据缓存的扫描结果定义bean类
+     *
+     * @param classLoader
+     * @param metadata
+     * @return
+     */
+    private PluginInfo define(PluginClassLoader classLoader, ClassMetadata metadata) {
+        PluginInfo pluginInfo = new PluginInfo();
+        pluginInfo.metadata = metadata;
+        if (metadata.annotation().isAnnotation()) {
+            try {
+                pluginInfo.clazz = classLoader.findPluginClass(metadata.className());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("类未找到: " + metadata.className(), e);
+            }
+        }
+        return pluginInfo;
+    }
+
+    /**
+     * 根据编译时生成的索引定义类，索引里的类都需要定义，用来判断接口的实现
+     *
+     * @param classLoader
+     * @param className
+     * @param annotation
+     * @return
+     */
+    private PluginInfo define(PluginClassLoader classLoader, String className, ANNOTATION_ENUM annotation) {
+        PluginInfo pluginInfo = new PluginInfo();
+        try {
+            pluginInfo.clazz = classLoader.findPluginClass(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("插件索引里的类未找到: " + className, e);
+        }
+        pluginInfo.metadata = ClassMetadata.of(pluginInfo.clazz, annotation);
+        return pluginInfo;
+    }
+
+    /**
+     * 记录插件目录的变更计数
+     *
+     * @param changeCounter
+     * @param changeCount
+     */
+    void watch(AtomicLong changeCounter, long changeCount) {
+        this.changeCounter = changeCounter;
+        this.changeCount = changeCount;
+    }
+
+    /**
+     * 插件目录自加载以来是否没有变更
+     *
+     * @return 没有监听时返回false，需要调用方检查文件状态
+     */
+    boolean isCurrent() {
+        AtomicLong counter = this.changeCounter;
+        return counter != null && counter.get() == changeCount;
+    }
+
     /**
      * 实例化对象或从spring容器里取现对象
      *
      * @param pluginInterface
-     * @return
+     * @return 插件没有这个接口的实现或已经卸载时返回null
      */
     public <T> T instance(Class<?> pluginInterface) {
-        Object o = null;
-        for (Map.Entry<String, PluginInfo> entry : cacheClass.entrySet()) {
-            PluginInfo pluginInfo = entry.getValue();
-            Class<?> clazz = pluginInfo.clazz;
-            if (pluginInterface.isAssignableFrom(clazz)) {
-                if (pluginInfo.instance == null) {
-                    if (pluginInfo.isSpringBeanClass) {
-                        String className = entry.getKey();
-                        pluginInfo.instance = SpringUtil.getBean(className);
-                    } else {
-                        try {
-                            pluginInfo.instance = clazz.getDeclaredConstructor().newInstance();
-                        } catch (InstantiationException | IllegalAccessException | InvocationTargetException |
-                                 NoSuchMethodException e) {
-                            log.error(e.getMessage(), e);
-                        }
+        if (unloaded.get()) {
+            return null;
+        }
+        PluginInfo pluginInfo = implementations.get(pluginInterface.getName());
+        if (pluginInfo == null) {
+            return null;
+        }
+        Object o = pluginInfo.instance;
+        if (o == null) {
+            o = resolveInstance(pluginInfo);
+        }
+        return o == null ? null : (T) o;
+    }
+
+    /**
+     * 第一次使用时创建实例，之后直接用缓存的实例
+     *
+     * @param pluginInfo
+     * @return
+     */
+    private Object resolveInstance(PluginInfo pluginInfo) {
+        synchronized (pluginInfo) {
+            if (pluginInfo.instance != null) {
+                return pluginInfo.instance;
+            }
+            // 没有获取的插件可能同时被卸载，容器和classLoader已经释放
+            PluginApplicationContext context = this.context;
+            PluginClassLoader classLoader = this.classLoader;
+            if (context == null || classLoader == null || unloaded.get()) {
+                return null;
+            }
+            String className = pluginInfo.metadata.className();
+            if (pluginInfo.isSpringBeanClass) {
+                pluginInfo.instance = context.getBean(pluginInfo.beanName);
+            } else {
+                try {
+                    if (pluginInfo.clazz == null) {
+                        pluginInfo.clazz = classLoader.findPluginClass(className);
                     }
+                    Object instance = pluginInfo.clazz.getDeclaredConstructor().newInstance();
+                    // 不是bean的类也可以用@Autowired拿到插件容器里的服务
+                    context.getAutowireCapableBeanFactory().autowireBean(instance);
+                    pluginInfo.instance = instance;
+                } catch (ClassNotFoundException | InstantiationException | IllegalAccessException |
+                         InvocationTargetException | NoSuchMethodException e) {
+                    log.error(e.getMessage(), e);
                 }
-                o = pluginInfo.instance;
-                break;
             }
+            return pluginInfo.instance;
         }
-        return o == null ? null : (T) o;
     }
 
     /**
-     * 卸载插件
+     * 建立 类型 -> 实现类 的索引，一个类型有多个实现时取jar里的第一个
+     *
+     * @param pluginInfos
+     * @return
+     */
+    private Map<String, PluginInfo> indexImplementations(List<PluginInfo> pluginInfos) {
+        Map<String, Set<String>> superTypeCache = new HashMap<>();
+        Map<String, PluginInfo> map = new HashMap<>();
+        for (PluginInfo pluginInfo : pluginInfos) {
+            if (pluginInfo.metadata.isAbstract()) {
+                continue;
+            }
+            for (String type : superTypes(pluginInfo.metadata.className(), superTypeCache)) {
+                map.putIfAbsent(type, pluginInfo);
+            }
+        }
+        return Map.copyOf(map);
+    }
+
+    /**
+     * 根据字节码里的父类和接口计算类的所有父类型(包括自己)，插件里的类不需要定义
+     *
+     * @param className
+     * @param superTypeCache
+     * @return
+     */
+    private Set<String> superTypes(String className, Map<String, Set<String>> superTypeCache) {
+        Set<String> superTypes = superTypeCache.get(className);
+        if (superTypes != null) {
+            return superTypes;
+        }
+        superTypes = new HashSet<>();
+        if (!Object.class.getName().equals(className)) {
+            superTypes.add(className);
+            PluginInfo pluginInfo = cacheClass.get(className);
+            if (pluginInfo != null) {
+                ClassMetadata metadata = pluginInfo.metadata;
+                for (String interfaceName : metadata.interfaces()) {
+                    superTypes.addAll(superTypes(interfaceName, superTypeCache));
+                }
+                if (metadata.superName() != null) {
+                    superTypes.addAll(superTypes(metadata.superName(), superTypeCache));
+                }
+            } else {
+                // 不是插件里的类，由主程序加载
+                try {
+                    Class<?> clazz = Class.forName(className, false, classLoader);
+                    for (Class<?> interfaceClass : clazz.getInterfaces()) {
+                        superTypes.addAll(superTypes(interfaceClass.getName(), superTypeCache));
+                    }
+                    if (clazz.getSuperclass() != null) {
+                        superTypes.addAll(superTypes(clazz.getSuperclass().getName(), superTypeCache));
+                    }
+                } catch (ClassNotFoundException | LinkageError e) {
+                    log.warn("类未找到: " + className);
+                }
+            }
+        }
+        superTypeCache.put(className, superTypes);
+        return superTypes;
+    }
+
+    /**
+     * 卸载插件，多次调用只卸载一次
      */
     public void unload() {
-        // 释放插件里缓存的对象
+        retired.set(true);
+        if (!unloaded.compareAndSet(false, true)) {
+            return;
+        }
+        // 注销Controller，释放插件里缓存的对象
+        unpublish();
         clearCacheClass();
         if (classLoader == null) {
             return;
         }
         try {
-            // 卸载classLoader
+            // 卸载classLoader，同时关闭插件的jar
             // 这一步很重要，否则会出现 src.refs 的计数大于 1 的情况，如果出现的话，插件是热卸载不掉的）
             classLoader.close();
+            log.info("卸载插件完成：" + classLoader.getName());
         } catch (IOException e) {
+            log.error("卸载插件失败：" + classLoader.getName());
             log.error(e.getMessage(), e);
         }
-        JarFile jarFile = classLoader.getJarFile();
-        if (jarFile == null) {
-            return;
-        }
-        try {
-            // 卸载jarFile
-            jarFile.close();
-            log.info("卸载插件完成：" + jarFile.getName());
-        } catch (IOException e) {
-            log.error("卸载插件失败：" + jarFile.getName());
-            log.error(e.getMessage(), e);
-        }
+        // 不再引用classLoader，之后由PluginLeakDetector确认是否被回收
+        classLoader = null;
+        loaderReference.unloaded();
     }
 
     /**
      * 释放插件里缓存的对象
      */
     private void clearCacheClass() {
-        if (cacheClass.isEmpty()) {
-            return;
+        implementations = Map.of();
+        if (context != null) {
+            // 关闭插件的容器，容器会按依赖关系的反序销毁bean
+            context.close();
+            log.info("关闭插件容器: " + context.getId());
+            context = null;
         }
-        while (!cacheClass.isEmpty()) {
-            Iterator<Map.Entry<String, PluginInfo>> iterator = cacheClass.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<String, PluginInfo> next = iterator.next();
-                String key = next.getKey();
-                PluginInfo pluginInfo = next.getValue();
-                if (!pluginInfo.isSpringBeanClass) {
-                    pluginInfo.clazz = null;
-                    pluginInfo.instance = null;
-                    iterator.remove();
-                    continue;
-                }
-                String[] dependentBeans = SpringUtil.getDependentBeans(key);
-                Enumeration<String> keys = cacheClass.keys();
-                boolean exists = false;
-                while (keys.hasMoreElements()) {
-                    String s = keys.nextElement();
-                    if (key.equals(s)) {
-                        continue;
-                    }
-                    if (Arrays.stream(dependentBeans).anyMatch(x -> x.equals(s))) {
-                        exists = true;
-                        break;
-                    }
-                }
-                if (!exists) {
-                    // 从Spring容器里移除bean
-                    SpringUtil.removeBean(key);
-                    // 从cacheClass里删除beanName
-                    pluginInfo.clazz = null;
-                    pluginInfo.instance = null;
-                    iterator.remove();
-                    log.info("卸载bean: " + key);
-                }
-            }
+        for (PluginInfo pluginInfo : cacheClass.values()) {
+            pluginInfo.clazz = null;
+            pluginInfo.instance = null;
         }
+        cacheClass.clear();
     }
 
     class PluginInfo {
+        private ClassMetadata metadata;
+        private String beanName;
         private Class<?> clazz;
         private boolean isSpringBeanClass;
-        private Object instance;
+        private volatile Object instance;
     }
 
 }
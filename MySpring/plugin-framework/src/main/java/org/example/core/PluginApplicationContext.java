@@ -0,0 +1,77 @@
+package org.example.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.support.GenericApplicationContext;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author zhy
+ * @date 2024/9/18 11:20
+ * <p>
+ * 插件的Spring容器
+ * <p>
+ * 关闭时先由Spring停止Lifecycle bean，再按依赖关系图销毁bean，最后由Spring清理剩下的；
+ * 关闭后清除Spring的反射、注解、类型解析缓存，这些缓存是软引用，不清除的话要等内存不足时才释放插件的类
+ */
+@Slf4j
+class PluginApplicationContext extends GenericApplicationContext {
+    /**
+     * 销毁bean的期限
+     */
+    static final Duration DESTROY_TIMEOUT = Duration.ofSeconds(10);
+    private static final List<Field> staticCaches = findStaticCaches(
+            "org.springframework.core.BridgeMethodResolver#cache",
+            "org.springframework.context.annotation.BeanAnnotationHelper#beanNameCache",
+            "org.springframework.context.annotation.BeanAnnotationHelper#scopedProxyCache");
+
+    @Getter
+    private PluginBeanDestroyer.DestroyReport destroyReport;
+
+    @Override
+    protected void destroyBeans() {
+        destroyReport = PluginBeanDestroyer.destroy(getDefaultListableBeanFactory(), getId(), DESTROY_TIMEOUT);
+        super.destroyBeans();
+    }
+
+    @Override
+    protected void onClose() {
+        super.onClose();
+        resetCommonCaches();
+        clearStaticCaches();
+    }
+
+    /**
+     * 当前Spring版本的resetCommonCaches不会清除的静态缓存
+     */
+    private static void clearStaticCaches() {
+        for (Field field : staticCaches) {
+            try {
+                ((Map<?, ?>) field.get(null)).clear();
+            } catch (IllegalAccessException | RuntimeException e) {
+                log.warn("清除Spring缓存失败: " + field + ", " + e.getMessage());
+            }
+        }
+    }
+
+    private static List<Field> findStaticCaches(String... classAndFields) {
+        List<Field> fields = new ArrayList<>();
+        for (String classAndField : classAndFields) {
+            int index = classAndField.lastIndexOf('#');
+            try {
+                Class<?> clazz = Class.forName(classAndField.substring(0, index), false, PluginApplicationContext.class.getClassLoader());
+                Field field = clazz.getDeclaredField(classAndField.substring(index + 1));
+                field.setAccessible(true);
+                fields.add(field);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // 其他Spring版本没有这个缓存
+            }
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,258 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author zhy
+ * @date 2024/9/18 10:05
+ * <p>
+ * 按依赖关系销毁插件容器里的bean
+ * <p>
+ * 依赖关系图只建立一次，被依赖的bean等依赖它的bean都销毁后再销毁；
+ * 没有依赖关系的几组bean并行销毁，超过期限还没销毁的bean会在报告里列出来
+ * <p>
+ * 所有插件共用一个按cpu核数(至少两个)创建的线程池，同时卸载多个插件时多出来的组排队；
+ * 超时后还没开始的组不再执行，正在执行的组中断后等它停下来，之后才交给Spring销毁剩下的bean，两边不会同时销毁
+ */
+@Slf4j
+class PluginBeanDestroyer {
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    /**
+     * 销毁方法一般在等待关闭连接，至少两个线程，一个慢的组不会挡住其他组
+     */
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "plugin-destroy-" + THREAD_NUMBER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private PluginBeanDestroyer() {
+    }
+
+    /**
+     * 销毁容器里的所有单例bean
+     *
+     * @param beanFactory
+     * @param contextId
+     * @param timeout
+     * @return
+     */
+    static DestroyReport destroy(DefaultListableBeanFactory beanFactory, String contextId, Duration timeout) {
+        long start = System.currentTimeMillis();
+        List<String> names = List.of(beanFactory.getSingletonNames());
+        Set<String> nameSet = new HashSet<>(names);
+        // bean -> 依赖它的bean，bean -> 它依赖的bean
+        Map<String, Set<String>> dependents = new HashMap<>();
+        Map<String, Set<String>> dependencies = new HashMap<>();
+        UnionFind components = new UnionFind(names);
+        for (String name : names) {
+            for (String dependent : beanFactory.getDependentBeans(name)) {
+                if (!nameSet.contains(dependent) || dependent.equals(name)) {
+                    continue;
+                }
+                dependents.computeIfAbsent(name, k -> new HashSet<>()).add(dependent);
+                dependencies.computeIfAbsent(dependent, k -> new HashSet<>()).add(name);
+                components.union(name, dependent);
+            }
+        }
+        Set<String> destroyed = ConcurrentHashMap.newKeySet();
+        List<String> cycles = Collections.synchronizedList(new ArrayList<>());
+        List<DestroyTask> tasks = new ArrayList<>();
+        for (List<String> component : components.groups()) {
+            DestroyTask task = new DestroyTask(() -> destroyComponent(beanFactory, component, dependents, dependencies, destroyed, cycles));
+            tasks.add(task);
+            EXECUTOR.execute(task);
+        }
+        boolean timedOut = !await(tasks, start + timeout.toMillis());
+        if (timedOut) {
+            // 还没开始的组不再执行，正在执行的中断后等它停下来
+            tasks.forEach(DestroyTask::cancel);
+            if (!await(tasks, System.currentTimeMillis() + timeout.toMillis())) {
+                log.warn("插件bean销毁线程中断后仍未结束: " + contextId);
+            }
+        }
+        List<String> leftover = names.stream().filter(name -> !destroyed.contains(name)).toList();
+        DestroyReport report = new DestroyReport(contextId, destroyed.size(), leftover, List.copyOf(cycles),
+                timedOut, System.currentTimeMillis() - start);
+        if (!leftover.isEmpty() || !cycles.isEmpty()) {
+            log.warn("插件bean未完全按依赖关系销毁: " + report);
+        } else {
+            log.info("销毁插件bean完成: " + contextId + ", 数量: " + report.destroyed() + ", 耗时: " + report.millis() + "ms");
+        }
+        return report;
+    }
+
+    /**
+     * 等待所有组结束
+     *
+     * @return 期限内是否都结束了
+     */
+    private static boolean await(List<DestroyTask> tasks, long deadline) {
+        try {
+            for (DestroyTask task : tasks) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !task.done.await(remaining, TimeUnit.MILLISECONDS)) {
+                    return tasks.stream().allMatch(DestroyTask::isDone);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 按拓扑序的反序销毁一组相互依赖的bean
+     */
+    private static void destroyComponent(DefaultListableBeanFactory beanFactory, List<String> component,
+                                         Map<String, Set<String>> dependents, Map<String, Set<String>> dependencies,
+                                         Set<String> destroyed, List<String> cycles) {
+        Map<String, Integer> remaining = new HashMap<>();
+        Deque<String> ready = new ArrayDeque<>();
+        for (String name : component) {
+            int count = dependents.getOrDefault(name, Set.of()).size();
+            remaining.put(name, count);
+            if (count == 0) {
+                ready.add(name);
+            }
+        }
+        while (!ready.isEmpty()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            String name = ready.poll();
+            beanFactory.destroySingleton(name);
+            destroyed.add(name);
+            for (String dependency : dependencies.getOrDefault(name, Set.of())) {
+                if (remaining.merge(dependency, -1, Integer::sum) == 0) {
+                    ready.add(dependency);
+                }
+            }
+        }
+        // 剩下的是循环依赖，交给Spring销毁(会先销毁依赖它的bean)
+        for (String name : component) {
+            if (!destroyed.contains(name)) {
+                cycles.add(name);
+                beanFactory.destroySingleton(name);
+                destroyed.add(name);
+            }
+        }
+    }
+
+    /**
+     * 销毁结果
+     *
+     * @param contextId 插件容器id
+     * @param destroyed 已销毁的bean数量
+     * @param leftover  超时未销毁的bean
+     * @param cycles    存在循环依赖的bean
+     * @param timedOut  是否超时
+     * @param millis    耗时
+     */
+    record DestroyReport(String contextId, int destroyed, List<String> leftover, List<String> cycles,
+                         boolean timedOut, long millis) {
+    }
+
+    /**
+     * 一组bean的销毁，取消时还没开始的不再执行，正在执行的中断
+     */
+    private static class DestroyTask implements Runnable {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+
+        private final Runnable destroy;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Thread thread;
+
+        DestroyTask(Runnable destroy) {
+            this.destroy = destroy;
+        }
+
+        @Override
+        public void run() {
+            // 先记下线程再开始，cancel看到RUNNING时一定能中断到它
+            thread = Thread.currentThread();
+            if (!state.compareAndSet(PENDING, RUNNING)) {
+                thread = null;
+                return;
+            }
+            try {
+                destroy.run();
+            } finally {
+                thread = null;
+                state.set(DONE);
+                done.countDown();
+            }
+        }
+
+        void cancel() {
+            if (state.compareAndSet(PENDING, DONE)) {
+                done.countDown();
+                return;
+            }
+            Thread current = thread;
+            if (current != null) {
+                current.interrupt();
+            }
+        }
+
+        boolean isDone() {
+            return state.get() == DONE;
+        }
+    }
+
+    /**
+     * 并查集，用来把bean分成互不依赖的几组
+     */
+    private static class UnionFind {
+        private final Map<String, String> parent = new LinkedHashMap<>();
+
+        UnionFind(List<String> names) {
+            names.forEach(name -> parent.put(name, name));
+        }
+
+        String find(String name) {
+            String root = name;
+            while (!root.equals(parent.get(root))) {
+                root = parent.get(root);
+            }
+            while (!name.equals(root)) {
+                String next = parent.get(name);
+                parent.put(name, root);
+                name = next;
+            }
+            return root;
+        }
+
+        void union(String a, String b) {
+            String rootA = find(a);
+            String rootB = find(b);
+            if (!rootA.equals(rootB)) {
+                parent.put(rootA, rootB);
+            }
+        }
+
+        Collection<List<String>> groups() {
+            Map<String, List<String>> groups = new LinkedHashMap<>();
+            for (String name : parent.keySet()) {
+                groups.computeIfAbsent(find(name), k -> new ArrayList<>()).add(name);
+            }
+            return groups.values();
+        }
+    }
+}
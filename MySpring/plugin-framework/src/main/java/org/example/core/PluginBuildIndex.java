@@ -0,0 +1,77 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * @author zhy
+ * @date 2024/9/24 11:00
+ * <p>
+ * 编译插件时由plugin-index-processor生成的索引，列出Spring bean类和插件接口的实现类
+ * <p>
+ * 所有jar都有索引时只定义索引里的类，加载耗时和bean的数量有关，和jar里类的数量无关
+ *
+ * @param entries 类名 -> 注解和接口，按jar的顺序
+ */
+@Slf4j
+record PluginBuildIndex(Map<String, List<String>> entries) {
+    static final String LOCATION = "META-INF/plugin-index";
+
+    /**
+     * 读取插件jar里的索引
+     *
+     * @param jarFiles
+     * @return 有jar没有索引时返回null，需要扫描jar
+     */
+    static PluginBuildIndex read(List<JarFile> jarFiles) {
+        Map<String, List<String>> entries = new LinkedHashMap<>();
+        for (JarFile jarFile : jarFiles) {
+            JarEntry jarEntry = jarFile.getJarEntry(LOCATION);
+            if (jarEntry == null) {
+                return null;
+            }
+            try (InputStream inputStream = jarFile.getInputStream(jarEntry);
+                 BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    int index = line.indexOf('=');
+                    if (line.startsWith("#") || index <= 0) {
+                        continue;
+                    }
+                    // 多个jar有同一个类时和类加载一样取第一个
+                    entries.putIfAbsent(line.substring(0, index), List.of(line.substring(index + 1).split(",")));
+                }
+            } catch (IOException e) {
+                log.warn("读取插件索引失败: " + jarFile.getName() + ", " + e.getMessage());
+                return null;
+            }
+        }
+        return new PluginBuildIndex(entries);
+    }
+
+    /**
+     * 索引里的注解对应的ANNOTATION_ENUM，有多个时按ANNOTATION_ENUM的顺序取第一个，只实现了插件接口的是OTHER
+     *
+     * @param stereotypes
+     * @return
+     */
+    static ANNOTATION_ENUM annotation(List<String> stereotypes) {
+        ANNOTATION_ENUM result = ANNOTATION_ENUM.OTHER;
+        for (String stereotype : stereotypes) {
+            ANNOTATION_ENUM annotation = ANNOTATION_ENUM.of(stereotype.trim());
+            if (annotation.ordinal() < result.ordinal()) {
+                result = annotation;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,236 @@
+package org.example.core;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * @author zhy
+ * @date 2024/9/25 10:20
+ * <p>
+ * 单个插件的舱壁，插件的调用在插件自己的线程池里执行
+ * <p>
+ * 并发数和排队数都有上限，排满后直接拒绝；超时后不再等待并中断执行中的调用，
+ * 一个插件变慢只会占满自己的线程，不会拖住请求线程和其他插件
+ */
+@Getter
+public class PluginBulkhead {
+    private final String pluginName;
+    private final int maxConcurrent;
+    private final int queueCapacity;
+    private final Duration timeout;
+    /**
+     * 被拒绝的调用次数
+     */
+    private final LongAdder rejections = new LongAdder();
+    /**
+     * 超时的调用次数
+     */
+    private final LongAdder timeouts = new LongAdder();
+    /**
+     * 没有空闲线程需要排队的调用次数
+     */
+    private final LongAdder queued = new LongAdder();
+    @Getter(AccessLevel.NONE)
+    private final ThreadPoolExecutor executor;
+    /**
+     * 异步调用不占用线程，执行中的调用数上限是并发数加排队数
+     */
+    @Getter(AccessLevel.NONE)
+    private final Semaphore asyncPermits;
+    /**
+     * 当前线程所在的舱壁，舱壁自己的线程里再次调用时直接执行，不再占用一个线程
+     */
+    private static final ThreadLocal<PluginBulkhead> CURRENT = new ThreadLocal<>();
+
+    PluginBulkhead(String pluginName, int maxConcurrent, int queueCapacity, Duration timeout) {
+        this.pluginName = pluginName;
+        this.maxConcurrent = maxConcurrent;
+        this.queueCapacity = queueCapacity;
+        this.timeout = timeout;
+        AtomicInteger threadNumber = new AtomicInteger();
+        BlockingQueue<Runnable> queue = queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+        this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS, queue, runnable -> {
+            Thread thread = new Thread(() -> {
+                CURRENT.set(this);
+                runnable.run();
+            }, "plugin-" + pluginName + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        // 空闲的插件不占用线程
+        this.executor.allowCoreThreadTimeOut(true);
+        this.asyncPermits = new Semaphore(maxConcurrent + queueCapacity);
+    }
+
+    /**
+     * 在插件的线程池里调用插件，调用结束后释放插件
+     *
+     * @param plugin  已经acquire的插件
+     * @param call
+     * @param timer   超时检查
+     * @return 被拒绝时以RejectedExecutionException结束，超时以TimeoutException结束
+     */
+    <T> CompletableFuture<T> submit(Plugin plugin, Function<Plugin, T> call, ScheduledExecutorService timer) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicReference<Thread> runner = new AtomicReference<>();
+        Runnable task = () -> {
+            try {
+                // 先登记线程再检查，检查之后才超时的调用也能被中断
+                synchronized (runner) {
+                    runner.set(Thread.currentThread());
+                }
+                // 排队期间已经超时的调用不再执行
+                if (result.isDone()) {
+                    return;
+                }
+                result.complete(call.apply(plugin));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                synchronized (runner) {
+                    runner.set(null);
+                    // 清掉超时设置的中断标记，避免影响下一个调用
+                    Thread.interrupted();
+                }
+                plugin.release();
+            }
+        };
+        if (CURRENT.get() == this) {
+            // 已经在这个插件的线程里(比如execute提交的任务)，占用的就是这个插件的线程，直接执行
+            scheduleTimeout(result, runner, timer);
+            task.run();
+            return result;
+        }
+        if (executor.getActiveCount() >= maxConcurrent) {
+            queued.increment();
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            plugin.release();
+            result.completeExceptionally(rejected());
+            return result;
+        }
+        scheduleTimeout(result, runner, timer);
+        return result;
+    }
+
+    private void scheduleTimeout(CompletableFuture<?> result, AtomicReference<Thread> runner, ScheduledExecutorService timer) {
+        if (timeout.toMillis() <= 0) {
+            return;
+        }
+        ScheduledFuture<?> timeoutFuture = timer.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException("插件 " + pluginName + " 调用超时: " + timeout))) {
+                timeouts.increment();
+                synchronized (runner) {
+                    Thread thread = runner.get();
+                    if (thread != null) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((value, e) -> timeoutFuture.cancel(false));
+    }
+
+    /**
+     * 在插件的线程池里执行还没有获取插件的任务，比如需要先加载插件的调用，任务里再调用submit时直接在这个线程执行
+     *
+     * @param task
+     * @throws RejectedExecutionException 并发数和排队数都满了
+     */
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw rejected();
+        }
+    }
+
+    private RejectedExecutionException rejected() {
+        return new RejectedExecutionException("插件 " + pluginName + " 调用已满, 并发数: "
+                + maxConcurrent + ", 排队数: " + queueCapacity);
+    }
+
+    /**
+     * 在当前线程发起异步调用，返回的结果结束后释放插件
+     * <p>
+     * 超时后结果以TimeoutException结束并取消插件返回的CompletionStage，插件的调用真正结束后才释放插件
+     *
+     * @param plugin 已经acquire的插件
+     * @param call
+     * @param timer  超时检查
+     * @return 被拒绝时以RejectedExecutionException结束，超时以TimeoutException结束
+     */
+    <T> CompletableFuture<T> submitAsync(Plugin plugin, Function<Plugin, CompletionStage<T>> call, ScheduledExecutorService timer) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!asyncPermits.tryAcquire()) {
+            rejections.increment();
+            plugin.release();
+            result.completeExceptionally(new RejectedExecutionException("插件 " + pluginName + " 调用已满, 异步调用数: "
+                    + (maxConcurrent + queueCapacity)));
+            return result;
+        }
+        CompletionStage<T> stage;
+        try {
+            stage = call.apply(plugin);
+        } catch (Throwable e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        CompletionStage<T> pluginStage = stage;
+        pluginStage.whenComplete((value, e) -> {
+            asyncPermits.release();
+            plugin.release();
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(value);
+            }
+        });
+        if (timeout.toMillis() > 0 && !result.isDone()) {
+            ScheduledFuture<?> timeoutFuture = timer.schedule(() -> {
+                if (result.completeExceptionally(new TimeoutException("插件 " + pluginName + " 调用超时: " + timeout))) {
+                    timeouts.increment();
+                    try {
+                        pluginStage.toCompletableFuture().cancel(true);
+                    } catch (UnsupportedOperationException e) {
+                        // 插件返回的CompletionStage不支持取消，等它自己结束
+                    }
+                }
+            }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+            result.whenComplete((value, e) -> timeoutFuture.cancel(false));
+        }
+        return result;
+    }
+
+    /**
+     * 排队中的调用数
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * 执行中的调用数，包括异步调用
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount() + maxConcurrent + queueCapacity - asyncPermits.availablePermits();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
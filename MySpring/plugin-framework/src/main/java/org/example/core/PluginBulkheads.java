@@ -0,0 +1,295 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * @author zhy
+ * @date 2024/9/25 10:40
+ * <p>
+ * 插件舱壁，每个插件一个线程池，第一次调用时创建
+ * <p>
+ * 进入线程池之前先经过插件的熔断和限流：熔断中、超过自适应并发上限或令牌不够时直接拒绝，令牌不够但可以排队时延迟提交
+ * <p>
+ * 调用抛出异常或返回Boolean.FALSE都算失败，插件一般用返回false表示供应商调用失败
+ */
+@Slf4j
+@Component
+public class PluginBulkheads implements DisposableBean {
+    private final PluginProperties.Bulkhead properties;
+    private final ConcurrentHashMap<String, PluginBulkhead> bulkheadMap = new ConcurrentHashMap<>();
+    private final PluginRateLimits pluginRateLimits;
+    private final PluginCircuitBreakers pluginCircuitBreakers;
+    private final ScheduledThreadPoolExecutor timer;
+
+    public PluginBulkheads(PluginProperties pluginProperties, PluginRateLimits pluginRateLimits,
+                           PluginCircuitBreakers pluginCircuitBreakers) {
+        this.properties = pluginProperties.getBulkhead();
+        this.pluginRateLimits = pluginRateLimits;
+        this.pluginCircuitBreakers = pluginCircuitBreakers;
+        this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "plugin-bulkhead-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 调用正常结束时取消的超时任务直接移除，不在队列里堆积
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * 加载插件并在插件的线程池里调用，调用结束后自动释放插件
+     *
+     * @param pluginName
+     * @param call
+     * @return 插件不存在时返回null的结果；被拒绝或超过限流时以RejectedExecutionException结束，熔断中以CircuitOpenException结束，超时以TimeoutException结束
+     */
+    public <T> CompletableFuture<T> submit(String pluginName, Function<Plugin, T> call) {
+        Plugin plugin = PluginManager.acquirePlugin(pluginName);
+        if (plugin == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return limit(pluginName, plugin, () -> dispatch(pluginName, plugin, call));
+    }
+
+    /**
+     * 加载插件后根据插件选择调用方式：async为true时和submitAsync一样在当前线程发起异步调用，否则和submit一样在插件的线程池里调用
+     *
+     * @param pluginName
+     * @param async     判断已获取的插件用哪种方式调用
+     * @param call      同步调用
+     * @param asyncCall 异步调用
+     * @return 和submit相同
+     */
+    public <T> CompletableFuture<T> submit(String pluginName, Predicate<Plugin> async, Function<Plugin, T> call,
+                                           Function<Plugin, CompletionStage<T>> asyncCall) {
+        Plugin plugin = PluginManager.acquirePlugin(pluginName);
+        if (plugin == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        boolean isAsync;
+        try {
+            isAsync = async.test(plugin);
+        } catch (Throwable e) {
+            plugin.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        if (isAsync) {
+            return limit(pluginName, plugin, () -> dispatchAsync(pluginName, plugin, asyncCall));
+        }
+        return limit(pluginName, plugin, () -> dispatch(pluginName, plugin, call));
+    }
+
+    /**
+     * 和submit一样，但获取插件(可能要冷加载)也在插件的线程池里进行，调用方线程不会被插件加载阻塞，
+     * 用于一个线程服务所有插件的调用方，比如定时发送的攒批；加载插件的时间不计入调用超时
+     * <p>
+     * 没有开启舱壁时和submit一样在当前线程加载和调用
+     *
+     * @param pluginName
+     * @param call
+     * @return 和submit相同
+     */
+    public <T> CompletableFuture<T> submitDeferred(String pluginName, Function<Plugin, T> call) {
+        if (!properties.isEnabled()) {
+            return submit(pluginName, call);
+        }
+        // 先确认插件存在再创建舱壁，随意的插件名称不会创建线程池和指标
+        if (!PluginManager.hasPlugin(pluginName)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            bulkheadFor(pluginName).execute(() -> {
+                CompletableFuture<T> future;
+                try {
+                    future = submit(pluginName, call);
+                } catch (Throwable e) {
+                    future = CompletableFuture.failedFuture(e);
+                }
+                future.whenComplete((value, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private <T> CompletableFuture<T> dispatch(String pluginName, Plugin plugin, Function<Plugin, T> call) {
+        if (!properties.isEnabled()) {
+            // 没有开启舱壁时在当前线程调用
+            try {
+                return CompletableFuture.completedFuture(call.apply(plugin));
+            } catch (Throwable e) {
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                plugin.release();
+            }
+        }
+        return bulkheadFor(pluginName).submit(plugin, call, timer);
+    }
+
+    /**
+     * 加载插件并在当前线程发起异步调用，插件返回的结果结束后自动释放插件
+     *
+     * @param pluginName
+     * @param call
+     * @return 插件不存在时返回null的结果；被拒绝或超过限流时以RejectedExecutionException结束，熔断中以CircuitOpenException结束，超时以TimeoutException结束
+     */
+    public <T> CompletableFuture<T> submitAsync(String pluginName, Function<Plugin, CompletionStage<T>> call) {
+        Plugin plugin = PluginManager.acquirePlugin(pluginName);
+        if (plugin == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return limit(pluginName, plugin, () -> dispatchAsync(pluginName, plugin, call));
+    }
+
+    private <T> CompletableFuture<T> dispatchAsync(String pluginName, Plugin plugin, Function<Plugin, CompletionStage<T>> call) {
+        if (!properties.isEnabled()) {
+            CompletionStage<T> stage;
+            try {
+                stage = call.apply(plugin);
+            } catch (Throwable e) {
+                stage = CompletableFuture.failedFuture(e);
+            }
+            return stage.whenComplete((value, e) -> plugin.release()).toCompletableFuture();
+        }
+        return bulkheadFor(pluginName).submitAsync(plugin, call, timer);
+    }
+
+    /**
+     * 经过插件的熔断和限流后再调用
+     *
+     * @param pluginName
+     * @param plugin     被拒绝时释放
+     * @param dispatch   实际的调用
+     * @return 调用方完成它(取消、到期)时转给舱壁返回的结果
+     */
+    private <T> CompletableFuture<T> limit(String pluginName, Plugin plugin, Supplier<CompletableFuture<T>> dispatch) {
+        PluginCircuitBreaker circuitBreaker = pluginCircuitBreakers.forPlugin(pluginName);
+        PluginCircuitBreaker.Permit permit = circuitBreaker == null ? null : circuitBreaker.tryAcquire();
+        if (circuitBreaker != null && permit == null) {
+            plugin.release();
+            return CompletableFuture.failedFuture(new CircuitOpenException(circuitBreaker.getName()));
+        }
+        AdaptiveConcurrencyLimiter concurrencyLimiter = pluginRateLimits.concurrencyLimiterFor(pluginName);
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+            if (permit != null) {
+                permit.release();
+            }
+            plugin.release();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("插件 " + pluginName
+                    + " 超过并发上限: " + (int) concurrencyLimiter.getLimit()));
+        }
+        PluginRateLimiter rateLimiter = pluginRateLimits.rateLimiterFor(pluginName);
+        long wait = rateLimiter == null ? 0 : rateLimiter.reserve();
+        if (wait < 0) {
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.cancel();
+            }
+            if (permit != null) {
+                permit.release();
+            }
+            plugin.release();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("插件 " + pluginName
+                    + " 超过限流: 每秒" + rateLimiter.getPermitsPerSecond() + "次"));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable run = () -> {
+            if (result.isDone()) {
+                // 等待令牌期间调用方已经放弃，不再调用
+                if (concurrencyLimiter != null) {
+                    concurrencyLimiter.cancel();
+                }
+                if (permit != null) {
+                    permit.release();
+                }
+                plugin.release();
+                return;
+            }
+            long start = System.nanoTime();
+            CompletableFuture<T> inner = dispatch.get();
+            // 调用方取消或到期时转给舱壁，排队中的调用不再执行，超时的调用照常中断
+            result.whenComplete((value, e) -> {
+                if (e != null) {
+                    inner.completeExceptionally(e);
+                }
+            });
+            inner.whenComplete((value, e) -> {
+                long latency = System.nanoTime() - start;
+                boolean failed = Boolean.FALSE.equals(value);
+                // 调用方先放弃时，这次调用的结果不代表插件的状态
+                boolean abandoned = result.isDone();
+                if (concurrencyLimiter != null) {
+                    if (abandoned) {
+                        concurrencyLimiter.cancel();
+                    } else {
+                        concurrencyLimiter.release(latency, e == null && !failed);
+                    }
+                }
+                if (permit != null) {
+                    if (abandoned) {
+                        permit.release();
+                    } else {
+                        permit.onComplete(latency, e, failed);
+                    }
+                }
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+        if (wait == 0) {
+            run.run();
+        } else {
+            // 排队等待令牌，不占用调用方和插件线程池的线程
+            CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS).execute(run);
+        }
+        return result;
+    }
+
+    /**
+     * 已创建的舱壁
+     *
+     * @return
+     */
+    public Map<String, PluginBulkhead> getBulkheads() {
+        return Collections.unmodifiableMap(bulkheadMap);
+    }
+
+    private PluginBulkhead bulkheadFor(String pluginName) {
+        PluginBulkhead bulkhead = bulkheadMap.get(pluginName);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        return bulkheadMap.computeIfAbsent(pluginName, name -> {
+            PluginProperties.BulkheadLimit limit = properties.limitFor(name);
+            PluginBulkhead created = new PluginBulkhead(name, limit.getMaxConcurrent(), limit.getQueueCapacity(), limit.getTimeout());
+            PluginMetrics.register(created);
+            log.info("创建插件舱壁: " + name + ", 并发数: " + created.getMaxConcurrent() + ", 排队数: "
+                    + created.getQueueCapacity() + ", 超时: " + created.getTimeout());
+            return created;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        timer.shutdownNow();
+        bulkheadMap.values().forEach(PluginBulkhead::shutdown);
+    }
+}
@@ -0,0 +1,280 @@
+package org.example.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 10:00
+ * <p>
+ * 熔断器，按最近一段时间的失败率和慢调用率熔断
+ * <p>
+ * CLOSED: 正常调用，统计时间分成10个桶滚动统计；失败率或慢调用率超过阈值后转为OPEN；<br>
+ * OPEN: 直接拒绝，只读一次volatile状态，不加锁；等待waitInOpen后转为HALF_OPEN；<br>
+ * HALF_OPEN: 只放halfOpenCalls个调用试探，都结束后按失败率转为CLOSED或重新OPEN
+ * <p>
+ * 每次调用拿到一个Permit，记录拿到时的状态，结果只计入拿到它的那次CLOSED或HALF_OPEN；
+ * 熔断前发出的调用在试探期间结束时不算试探，也不会归还试探名额
+ */
+@Slf4j
+public class PluginCircuitBreaker {
+    private static final int BUCKETS = 10;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @Getter
+    private final String name;
+    private final Rule rule;
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    /**
+     * 当前CLOSED和HALF_OPEN发出的许可，状态变化时换成新的
+     */
+    private volatile Permit closedPermit = new Permit(0);
+    private volatile Permit probePermit = new Permit(0);
+    /**
+     * 以下统计只在锁里修改
+     */
+    private final long[] bucketIds = new long[BUCKETS];
+    private final int[] calls = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    private final int[] slowCalls = new int[BUCKETS];
+    private int halfOpenFinished;
+    private int halfOpenFailures;
+    private int halfOpenSlowCalls;
+    /**
+     * 熔断期间被拒绝的调用次数
+     */
+    @Getter
+    private final LongAdder notPermitted = new LongAdder();
+    /**
+     * 熔断的次数
+     */
+    @Getter
+    private final LongAdder opened = new LongAdder();
+
+    PluginCircuitBreaker(String name, PluginProperties.CircuitBreakerRule rule) {
+        this.name = name;
+        long window = Math.max(BUCKETS, rule.getWindow().toNanos());
+        this.rule = new Rule(window / BUCKETS, Math.max(1, rule.getMinimumCalls()), rule.getFailureRateThreshold(),
+                rule.getSlowCallRateThreshold(), rule.getSlowCallDuration().toNanos(), rule.getWaitInOpen().toNanos(),
+                Math.max(1, rule.getHalfOpenCalls()));
+    }
+
+    /**
+     * 开始一次调用
+     *
+     * @return 熔断中返回null
+     */
+    Permit tryAcquire() {
+        State state = this.state;
+        if (state == State.CLOSED) {
+            return closedPermit;
+        }
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < rule.waitInOpen()) {
+                notPermitted.increment();
+                return null;
+            }
+            state = toHalfOpen();
+            if (state == State.CLOSED) {
+                return closedPermit;
+            }
+        }
+        if (state == State.HALF_OPEN) {
+            // 名额记在这一轮试探的许可上，读到上一轮的许可时拿到的也是上一轮的名额
+            Permit permit = probePermit;
+            if (permit.tryAcquireProbe()) {
+                return permit;
+            }
+        }
+        notPermitted.increment();
+        return null;
+    }
+
+    private synchronized State toHalfOpen() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= rule.waitInOpen()) {
+            halfOpenFinished = 0;
+            halfOpenFailures = 0;
+            halfOpenSlowCalls = 0;
+            probePermit = new Permit(rule.halfOpenCalls());
+            state = State.HALF_OPEN;
+            log.info(name + " 熔断结束, 开始试探");
+        }
+        return state;
+    }
+
+    private synchronized void record(Permit permit, boolean slow, boolean success) {
+        if (state == State.HALF_OPEN) {
+            if (permit != probePermit) {
+                // 熔断前或上一轮试探发出的调用，不算这一轮的试探
+                return;
+            }
+            halfOpenFinished++;
+            halfOpenFailures += success ? 0 : 1;
+            halfOpenSlowCalls += slow ? 1 : 0;
+            if (halfOpenFinished >= rule.halfOpenCalls()) {
+                if (exceeded(halfOpenFinished, halfOpenFailures, halfOpenSlowCalls)) {
+                    open("试探失败");
+                } else {
+                    close();
+                }
+            }
+            return;
+        }
+        if (state != State.CLOSED || permit != closedPermit) {
+            // 熔断前或试探期间发出的调用，结果不再影响状态
+            return;
+        }
+        long bucketId = System.nanoTime() / rule.bucketNanos();
+        int index = (int) Math.floorMod(bucketId, (long) BUCKETS);
+        if (bucketIds[index] != bucketId) {
+            bucketIds[index] = bucketId;
+            calls[index] = 0;
+            failures[index] = 0;
+            slowCalls[index] = 0;
+        }
+        calls[index]++;
+        failures[index] += success ? 0 : 1;
+        slowCalls[index] += slow ? 1 : 0;
+        int[] total = total(bucketId);
+        if (total[0] >= rule.minimumCalls() && exceeded(total[0], total[1], total[2])) {
+            open("失败率: " + rate(total[1], total[0]) + "%, 慢调用率: " + rate(total[2], total[0]) + "%");
+        }
+    }
+
+    private boolean exceeded(int calls, int failures, int slowCalls) {
+        return rate(failures, calls) >= rule.failureRateThreshold() || rate(slowCalls, calls) >= rule.slowCallRateThreshold();
+    }
+
+    private void open(String reason) {
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+        opened.increment();
+        log.warn(name + " 熔断, " + reason);
+    }
+
+    private void close() {
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketIds[i] = 0;
+            calls[i] = 0;
+            failures[i] = 0;
+            slowCalls[i] = 0;
+        }
+        closedPermit = new Permit(0);
+        state = State.CLOSED;
+        log.info(name + " 恢复调用");
+    }
+
+    /**
+     * 统计时间内的调用数、失败数、慢调用数
+     */
+    private int[] total(long bucketId) {
+        int[] total = new int[3];
+        for (int i = 0; i < BUCKETS; i++) {
+            if (bucketIds[i] > bucketId - BUCKETS) {
+                total[0] += calls[i];
+                total[1] += failures[i];
+                total[2] += slowCalls[i];
+            }
+        }
+        return total;
+    }
+
+    private static float rate(int count, int calls) {
+        return calls == 0 ? 0 : count * 100f / calls;
+    }
+
+    public State getState() {
+        State state = this.state;
+        // 等待时间已过但还没有调用进来时，对外显示为HALF_OPEN
+        if (state == State.OPEN && System.nanoTime() - openedAt >= rule.waitInOpen()) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized CircuitBreakerStats getStats() {
+        int[] total = total(System.nanoTime() / rule.bucketNanos());
+        boolean enough = total[0] >= rule.minimumCalls();
+        return new CircuitBreakerStats(name, getState(), total[0],
+                enough ? rate(total[1], total[0]) : -1, enough ? rate(total[2], total[0]) : -1,
+                notPermitted.sum(), opened.sum());
+    }
+
+    /**
+     * 一次调用的许可，结束时调用onComplete或release
+     */
+    final class Permit {
+        /**
+         * 剩余的试探名额，CLOSED发出的许可没有名额
+         */
+        private final AtomicInteger probes;
+        private final int maxProbes;
+
+        private Permit(int probes) {
+            this.probes = new AtomicInteger(probes);
+            this.maxProbes = probes;
+        }
+
+        /**
+         * 取一个试探名额，名额用完时不修改计数，被拒绝的调用不会把名额扣成负数
+         */
+        private boolean tryAcquireProbe() {
+            while (true) {
+                int remaining = probes.get();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (probes.compareAndSet(remaining, remaining - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 结束一次调用
+         *
+         * @param latencyNanos
+         * @param e            调用抛出的异常，被舱壁或限流拒绝、被调用方取消的调用不计入统计
+         * @param failed       没有异常但结果表示失败，比如插件返回false、外部地址返回5xx
+         */
+        void onComplete(long latencyNanos, Throwable e, boolean failed) {
+            Throwable cause = e;
+            while (cause != null && cause.getCause() != null && !(cause instanceof RejectedExecutionException)) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof RejectedExecutionException || cause instanceof CancellationException) {
+                release();
+                return;
+            }
+            record(this, latencyNanos > rule.slowCallDuration(), e == null && !failed);
+        }
+
+        /**
+         * 调用没有真正发出，归还试探名额，最多归还到这一轮试探的调用数
+         */
+        void release() {
+            if (maxProbes == 0) {
+                return;
+            }
+            while (true) {
+                int remaining = probes.get();
+                if (remaining >= maxProbes || probes.compareAndSet(remaining, remaining + 1)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private record Rule(long bucketNanos, int minimumCalls, float failureRateThreshold, float slowCallRateThreshold,
+                        long slowCallDuration, long waitInOpen, int halfOpenCalls) {
+    }
+}
@@ -0,0 +1,76 @@
+package org.example.core;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhy
+ * @date 2024/10/8 11:00
+ * <p>
+ * 插件的熔断器和插件访问的外部地址的熔断器，第一次调用时创建
+ */
+@Component
+public class PluginCircuitBreakers {
+    private final PluginProperties.CircuitBreaker properties;
+    private final ConcurrentHashMap<String, PluginCircuitBreaker> pluginMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PluginCircuitBreaker> hostMap = new ConcurrentHashMap<>();
+
+    public PluginCircuitBreakers(PluginProperties pluginProperties) {
+        this.properties = pluginProperties.getCircuitBreaker();
+    }
+
+    /**
+     * 插件的熔断器
+     *
+     * @param pluginName
+     * @return 没有开启熔断时返回null
+     */
+    PluginCircuitBreaker forPlugin(String pluginName) {
+        return circuitBreakerFor(pluginMap, properties.getPlugins(), "plugin", pluginName);
+    }
+
+    /**
+     * 外部地址的熔断器
+     *
+     * @param host host:port
+     * @return 没有开启熔断时返回null
+     */
+    PluginCircuitBreaker forHost(String host) {
+        return circuitBreakerFor(hostMap, properties.getHosts(), "host", host);
+    }
+
+    private PluginCircuitBreaker circuitBreakerFor(ConcurrentHashMap<String, PluginCircuitBreaker> map,
+                                                   Map<String, PluginProperties.CircuitBreakerRule> rules,
+                                                   String type, String name) {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        PluginCircuitBreaker circuitBreaker = map.get(name);
+        if (circuitBreaker != null) {
+            return circuitBreaker;
+        }
+        return map.computeIfAbsent(name, key -> {
+            PluginCircuitBreaker created = new PluginCircuitBreaker(type + " " + key, properties.ruleFor(rules.get(key)));
+            PluginMetrics.register(created, type, key);
+            return created;
+        });
+    }
+
+    public Map<String, CircuitBreakerStats> getPluginStats() {
+        return stats(pluginMap);
+    }
+
+    public Map<String, CircuitBreakerStats> getHostStats() {
+        return stats(hostMap);
+    }
+
+    private static Map<String, CircuitBreakerStats> stats(Map<String, PluginCircuitBreaker> map) {
+        Map<String, CircuitBreakerStats> stats = new TreeMap<>();
+        map.forEach((name, circuitBreaker) -> stats.put(name, circuitBreaker.getStats()));
+        return Collections.unmodifiableMap(stats);
+    }
+}
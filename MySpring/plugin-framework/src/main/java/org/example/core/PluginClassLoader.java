@@ -1,19 +1,22 @@
 package org.example.core;
 
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.stereotype.Component;
-import org.springframework.stereotype.Controller;
-import org.springframework.stereotype.Repository;
-import org.springframework.stereotype.Service;
-import org.springframework.web.bind.annotation.RestController;
-
-import java.lang.reflect.Modifier;
-import java.net.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 /**
  * @author zhy
@@ -22,14 +25,75 @@ import java.util.jar.JarFile;
 @Getter
 @Slf4j
 class PluginClassLoader extends URLClassLoader {
-    @Setter
-    private JarFile jarFile;
+    /**
+     * 插件的jar
+     */
+    private final List<JarFile> jarFiles = new CopyOnWriteArrayList<>();
+    /**
+     * 插件自己加载的依赖jar
+     */
+    private final List<JarFile> libraries = new CopyOnWriteArrayList<>();
+    /**
+     * 包名 -> 包含这个包的jar，查找类时只打开可能包含这个类的jar
+     */
+    private final ConcurrentHashMap<String, List<JarFile>> packageIndex = new ConcurrentHashMap<>();
+    /**
+     * 这个classLoader定义的类的字节码总大小，用来估算元空间，classLoader回收后仍由LoaderReference持有
+     */
+    private final LongAdder definedBytes = new LongAdder();
+    /**
+     * 包名 -> 插件登记的共享依赖，插件只能看到自己登记的共享jar
+     */
+    private final ConcurrentHashMap<String, SharedLibraryClassLoader> sharedLibraries = new ConcurrentHashMap<>();
+
+    /**
+     * 这些包总是先从父classLoader加载，保证插件和主程序使用同一份JDK和Spring的类
+     */
+    private static final String[] PARENT_FIRST_PACKAGES = {
+            "java.", "javax.", "jakarta.", "jdk.", "sun.", "com.sun.",
+            "org.springframework.", "org.slf4j.", "org.apache.commons.logging."
+    };
+    /**
+     * 主程序提供给插件的接口所在的包，只匹配包本身；以.结尾的是前缀，包含子包
+     */
+    private static volatile Set<String> apiPackages = Set.of();
+    private static volatile List<String> apiPackagePrefixes = List.of();
+
+    static {
+        // 按类名加锁，不同的类可以并发定义
+        ClassLoader.registerAsParallelCapable();
+    }
 
-    public PluginClassLoader() {
-        super(new URL[]{}, findParentClassLoader());
+    /**
+     * @param name classLoader的名称，导出堆后按名称查找
+     */
+    public PluginClassLoader(String name) {
+        super(name, new URL[]{}, findParentClassLoader());
     }
 
-    private static ClassLoader findParentClassLoader() {
+    /**
+     * 主程序提供给插件的接口所在的包，这些包里的类先从主程序加载，插件自己的包(即使和主程序同名前缀)仍然先从插件加载
+     *
+     * @param packages 包名，以.*结尾时包含子包
+     */
+    static void setApiPackages(List<String> packages) {
+        Set<String> names = new HashSet<>();
+        List<String> prefixes = new ArrayList<>();
+        if (packages != null) {
+            for (String packageName : packages) {
+                String name = packageName.trim();
+                if (name.endsWith(".*")) {
+                    prefixes.add(name.substring(0, name.length() - 1));
+                } else if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+        }
+        apiPackages = Set.copyOf(names);
+        apiPackagePrefixes = List.copyOf(prefixes);
+    }
+
+    static ClassLoader findParentClassLoader() {
         // 使用自定义的 ClassLoader，避免使用 SystemClassLoader 加载 Class
         ClassLoader parent = Plugin.class.getClassLoader();
         if (parent == null) {
@@ -43,60 +107,229 @@ class PluginClassLoader extends URLClassLoader {
 //        return Thread.currentThread().getContextClassLoader();
     }
 
-    @Override
-    public void addURL(URL url) {
-        try {
-            URLConnection urlConnection = url.openConnection();
-            if (urlConnection instanceof JarURLConnection jarURLConnection) {
-//                jarURLConnection.setUseCaches(true);
-                jarFile = jarURLConnection.getJarFile();
+    /**
+     * 添加插件jar
+     * 使用file协议的URL，不使用jar协议，jar协议的JarFile是按路径全局缓存的，
+     * 同一个插件的新旧版本同时存在时会拿到同一个JarFile
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void addJar(File file) throws IOException {
+        JarFile jarFile = new JarFile(file);
+        jarFiles.add(jarFile);
+        index(jarFile);
+        super.addURL(file.toURI().toURL());
+    }
+
+    /**
+     * 添加插件自己加载的依赖jar
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void addLibrary(File file) throws IOException {
+        JarFile jarFile = new JarFile(file);
+        libraries.add(jarFile);
+        index(jarFile);
+        super.addURL(file.toURI().toURL());
+    }
+
+    /**
+     * 添加共享的依赖jar
+     *
+     * @param sharedLibrary
+     */
+    public void addSharedLibrary(SharedLibraryClassLoader sharedLibrary) {
+        for (String packageName : sharedLibrary.getPackageNames()) {
+            sharedLibraries.putIfAbsent(packageName, sharedLibrary);
+        }
+    }
+
+    private void index(JarFile jarFile) {
+        Set<String> packages = new HashSet<>();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            String entryName = entries.nextElement().getName();
+            if (entryName.endsWith(".class") && !entryName.startsWith("META-INF/")) {
+                int index = entryName.lastIndexOf('/');
+                packages.add(index > 0 ? entryName.substring(0, index).replace('/', '.') : "");
             }
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
         }
-        super.addURL(url);
+        for (String packageName : packages) {
+            packageIndex.computeIfAbsent(packageName, k -> new CopyOnWriteArrayList<>()).add(jarFile);
+        }
     }
 
+    /**
+     * 插件自己的类和依赖先从插件的jar加载，找不到再交给插件登记的共享依赖，最后交给主程序
+     */
     @Override
-    protected Class<?> findClass(final String name)
-            throws ClassNotFoundException {
-        return super.findClass(name);
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (isParentFirst(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                try {
+                    clazz = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    int index = name.lastIndexOf('.');
+                    SharedLibraryClassLoader sharedLibrary = index > 0 ? sharedLibraries.get(name.substring(0, index)) : null;
+                    if (sharedLibrary == null) {
+                        return super.loadClass(name, resolve);
+                    }
+                    clazz = sharedLibrary.loadClass(name);
+                }
+            }
+            if (resolve) {
+                resolveClass(clazz);
+            }
+            return clazz;
+        }
     }
 
-    protected ANNOTATION_ENUM getAnnotation(Class<?> clazz) {
-        if (clazz == null) {
-            return ANNOTATION_ENUM.OTHER;
+    /**
+     * 插件的jar里没有时从登记的共享依赖里找，比如依赖的META-INF/services
+     */
+    @Override
+    public URL findResource(String name) {
+        URL url = super.findResource(name);
+        if (url != null) {
+            return url;
+        }
+        for (SharedLibraryClassLoader sharedLibrary : new LinkedHashSet<>(sharedLibraries.values())) {
+            url = sharedLibrary.findResource(name);
+            if (url != null) {
+                return url;
+            }
         }
-        //是否是接口
-        if (clazz.isInterface()) {
-            return ANNOTATION_ENUM.OTHER;
+        return null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        List<URL> urls = Collections.list(super.findResources(name));
+        for (SharedLibraryClassLoader sharedLibrary : new LinkedHashSet<>(sharedLibraries.values())) {
+            urls.addAll(Collections.list(sharedLibrary.findResources(name)));
         }
-        //是否是抽象类
-        if (Modifier.isAbstract(clazz.getModifiers())) {
-            return ANNOTATION_ENUM.OTHER;
+        return Collections.enumeration(urls);
+    }
+
+    private static boolean isParentFirst(String name) {
+        int index = name.lastIndexOf('.');
+        if (index > 0 && apiPackages.contains(name.substring(0, index))) {
+            return true;
         }
-        if (clazz.getAnnotation(Component.class) != null) {
-            return ANNOTATION_ENUM.COMPONENT;
+        for (String prefix : apiPackagePrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
         }
-        if (clazz.getAnnotation(Repository.class) != null) {
-            return ANNOTATION_ENUM.REPOSITORY;
+        for (String packageName : PARENT_FIRST_PACKAGES) {
+            if (name.startsWith(packageName)) {
+                return true;
+            }
         }
-        if (clazz.getAnnotation(Service.class) != null) {
-            return ANNOTATION_ENUM.SERVICE;
+        return false;
+    }
+
+    /**
+     * 关闭classLoader和所有jar
+     */
+    @Override
+    public void close() throws IOException {
+        super.close();
+        packageIndex.clear();
+        for (JarFile jarFile : jarFiles) {
+            jarFile.close();
         }
-        if (clazz.getAnnotation(Controller.class) != null) {
-            return ANNOTATION_ENUM.CONTROLLER;
+        for (JarFile library : libraries) {
+            library.close();
         }
-        if (clazz.getAnnotation(RestController.class) != null) {
-            return ANNOTATION_ENUM.REST_CONTROLLER;
+    }
+
+    /**
+     * 按包名索引找到可能包含这个类的jar，包名不在索引里的直接返回，不用逐个jar查找
+     */
+    @Override
+    protected Class<?> findClass(final String name)
+            throws ClassNotFoundException {
+        int index = name.lastIndexOf('.');
+        List<JarFile> candidates = packageIndex.get(index > 0 ? name.substring(0, index) : "");
+        if (candidates == null) {
+            throw new ClassNotFoundException(name);
         }
-        if (clazz.getAnnotation(Configuration.class) != null) {
-            return ANNOTATION_ENUM.CONFIGURATION;
+        String entryName = name.replace('.', '/') + ".class";
+        for (JarFile jarFile : candidates) {
+            JarEntry jarEntry = jarFile.getJarEntry(entryName);
+            if (jarEntry == null) {
+                continue;
+            }
+            try (InputStream inputStream = jarFile.getInputStream(jarEntry)) {
+                return definePluginClass(name, inputStream.readAllBytes(), jarFile);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
         }
-        if (clazz.getAnnotation(Bean.class) != null) {
-            return ANNOTATION_ENUM.BEAN;
+        throw new ClassNotFoundException(name);
+    }
+
+    /**
+     * 从插件jar里定义类，已定义过的直接返回
+     * 此处无需双亲委派，所以使用用findClass而不是loadClass
+     *
+     * @param name
+     * @return
+     * @throws ClassNotFoundException
+     */
+    protected Class<?> findPluginClass(String name) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                clazz = findClass(name);
+            }
+            return clazz;
         }
-        return ANNOTATION_ENUM.OTHER;
     }
 
+    /**
+     * 用已经读取的字节码定义插件里的类，不需要再从jar里读一遍
+     *
+     * @param name
+     * @param bytes
+     * @param jarFile 类所在的jar
+     * @return
+     * @throws IOException
+     */
+    protected Class<?> definePluginClass(String name, byte[] bytes, JarFile jarFile) throws IOException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz != null) {
+                return clazz;
+            }
+            URL url = new File(jarFile.getName()).toURI().toURL();
+            int index = name.lastIndexOf('.');
+            if (index > 0) {
+                String packageName = name.substring(0, index);
+                if (getDefinedPackage(packageName) == null) {
+                    try {
+                        Manifest manifest = jarFile.getManifest();
+                        // 没有MANIFEST.MF的jar按没有版本信息的包定义
+                        if (manifest == null) {
+                            definePackage(packageName, null, null, null, null, null, null, null);
+                        } else {
+                            definePackage(packageName, manifest, url);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // 其他线程已经定义了这个包
+                    }
+                }
+            }
+            clazz = defineClass(name, bytes, 0, bytes.length, new CodeSource(url, (CodeSigner[]) null));
+            definedBytes.add(bytes.length);
+            return clazz;
+        }
+    }
 }
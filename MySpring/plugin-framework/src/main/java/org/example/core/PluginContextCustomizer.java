@@ -0,0 +1,21 @@
+package org.example.core;
+
+import org.springframework.context.support.GenericApplicationContext;
+
+/**
+ * @author zhy
+ * @date 2024/10/10 10:00
+ * <p>
+ * 插件容器的定制，由主程序实现，插件的容器刷新前调用，比如把主程序提供给插件的服务注册成插件容器里的bean
+ * <p>
+ * 注册的bean随插件卸载一起销毁；插件里没有Spring注解的类实例化后也会按@Autowired注入这些bean
+ */
+public interface PluginContextCustomizer {
+    /**
+     * 定制插件的容器
+     *
+     * @param plugin
+     * @param context 插件的容器，还没有刷新
+     */
+    void customize(Plugin plugin, GenericApplicationContext context);
+}
@@ -0,0 +1,264 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.example.util.SpringUtil;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.MethodParameter;
+import org.springframework.util.ClassUtils;
+import org.springframework.web.method.support.HandlerMethodArgumentResolverComposite;
+import org.springframework.web.servlet.HandlerExceptionResolver;
+import org.springframework.web.servlet.handler.HandlerExceptionResolverComposite;
+import org.springframework.web.servlet.handler.AbstractHandlerMethodMapping;
+import org.springframework.web.servlet.mvc.method.RequestMappingInfo;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author zhy
+ * @date 2024/9/19 9:40
+ * <p>
+ * 插件Controller的注册表
+ * <p>
+ * 记录每个插件注册的RequestMappingInfo，卸载时注销并清除Spring MVC按Controller类型做的缓存，
+ * 重新加载时新旧版本的映射一次性切换；用到的反射方法只查找一次
+ */
+@Slf4j
+class PluginControllerRegistry {
+    /**
+     * 插件名称 -> 当前生效的映射
+     */
+    private static final Map<String, Publication> publicationMap = new HashMap<>();
+
+    /**
+     * Spring MVC里以Controller类型或方法参数为key的缓存
+     */
+    private static final Set<String> HANDLER_CACHE_FIELDS = Set.of(
+            "initBinderCache", "modelAttributeCache", "sessionAttributesHandlerCache", "exceptionHandlerCache",
+            "argumentResolverCache");
+    private static final Map<Class<?>, List<Field>> cacheFieldMap = new HashMap<>();
+
+    private static Method getMappingForMethod;
+    private static RequestMappingHandlerMapping handlerMapping;
+    private static Lock mappingLock;
+
+    private PluginControllerRegistry() {
+    }
+
+    /**
+     * 发布插件的Controller，同名插件已有的映射会被替换，失败时恢复原来的映射
+     *
+     * @param plugin
+     * @param handlers 插件容器里的Controller对象
+     * @return
+     */
+    static synchronized boolean publish(Plugin plugin, List<Object> handlers) {
+        Publication old = publicationMap.get(plugin.getName());
+        if (handlers.isEmpty() && old == null) {
+            return true;
+        }
+        RequestMappingHandlerMapping handlerMapping = handlerMapping();
+        List<Registration> registrations = new ArrayList<>();
+        // 持有映射表的写锁，请求要么看到旧版本的映射，要么看到新版本的映射
+        Lock lock = mappingLock;
+        lock.lock();
+        try {
+            if (old != null) {
+                old.registrations.forEach(registration -> handlerMapping.unregisterMapping(registration.info()));
+            }
+            try {
+                for (Object handler : handlers) {
+                    Class<?> userType = ClassUtils.getUserClass(handler.getClass());
+                    Map<Method, RequestMappingInfo> methods = MethodIntrospector.selectMethods(userType,
+                            (MethodIntrospector.MetadataLookup<RequestMappingInfo>) method -> getMappingForMethod(method, userType));
+                    for (Map.Entry<Method, RequestMappingInfo> entry : methods.entrySet()) {
+                        Method invocableMethod = AopUtils.selectInvocableMethod(entry.getKey(), userType);
+                        handlerMapping.registerMapping(entry.getValue(), handler, invocableMethod);
+                        registrations.add(new Registration(entry.getValue(), handler, invocableMethod));
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("注册Controller失败: " + plugin.getName() + ", " + e.getMessage());
+                registrations.forEach(registration -> handlerMapping.unregisterMapping(registration.info()));
+                if (old != null) {
+                    old.registrations.forEach(registration -> handlerMapping.registerMapping(
+                            registration.info(), registration.handler(), registration.method()));
+                }
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (old != null) {
+            evictHandlerCaches(old.registrations);
+        }
+        if (registrations.isEmpty()) {
+            publicationMap.remove(plugin.getName());
+        } else {
+            publicationMap.put(plugin.getName(), new Publication(plugin, registrations));
+            log.info("注册Controller: " + plugin.getName() + ", 映射数量: " + registrations.size());
+        }
+        return true;
+    }
+
+    /**
+     * 注销插件的Controller，已经被新版本替换时不做处理
+     *
+     * @param plugin
+     */
+    static synchronized void unpublish(Plugin plugin) {
+        Publication publication = publicationMap.get(plugin.getName());
+        if (publication == null || publication.plugin != plugin) {
+            return;
+        }
+        RequestMappingHandlerMapping handlerMapping = handlerMapping();
+        Lock lock = mappingLock;
+        lock.lock();
+        try {
+            publication.registrations.forEach(registration -> handlerMapping.unregisterMapping(registration.info()));
+        } finally {
+            lock.unlock();
+        }
+        publicationMap.remove(plugin.getName());
+        evictHandlerCaches(publication.registrations);
+        log.info("注销Controller: " + plugin.getName());
+    }
+
+    /**
+     * 插件当前注册的映射
+     *
+     * @return
+     */
+    static synchronized Map<String, List<RequestMappingInfo>> getMappings() {
+        Map<String, List<RequestMappingInfo>> mappings = new TreeMap<>();
+        publicationMap.forEach((name, publication) -> mappings.put(name,
+                publication.registrations.stream().map(Registration::info).toList()));
+        return mappings;
+    }
+
+    /**
+     * 清除Spring MVC按Controller类型、方法参数缓存的解析结果(@InitBinder、@ModelAttribute、@SessionAttributes、
+     * @ExceptionHandler、参数解析器)，这些缓存的key引用着插件里的类，不清除的话旧版本的classLoader永远不会被回收
+     */
+    private static void evictHandlerCaches(List<Registration> registrations) {
+        Set<ClassLoader> classLoaders = new HashSet<>();
+        registrations.forEach(registration -> classLoaders.add(registration.handler().getClass().getClassLoader()));
+        List<Object> owners = new ArrayList<>(SpringUtil.getApplicationContext().getBeansOfType(RequestMappingHandlerAdapter.class).values());
+        for (HandlerExceptionResolver resolver : SpringUtil.getApplicationContext().getBeansOfType(HandlerExceptionResolver.class).values()) {
+            if (resolver instanceof HandlerExceptionResolverComposite composite) {
+                owners.addAll(composite.getExceptionResolvers());
+            } else {
+                owners.add(resolver);
+            }
+        }
+        owners.forEach(owner -> evictHandlerCaches(owner, classLoaders));
+    }
+
+    private static void evictHandlerCaches(Object owner, Set<ClassLoader> classLoaders) {
+        for (Field field : cacheFieldMap.computeIfAbsent(owner.getClass(), PluginControllerRegistry::findCacheFields)) {
+            try {
+                Object value = field.get(owner);
+                if (value instanceof Map<?, ?> cache) {
+                    cache.keySet().removeIf(key -> isPluginKey(key, classLoaders));
+                } else if (value != null) {
+                    evictHandlerCaches(value, classLoaders);
+                }
+            } catch (IllegalAccessException e) {
+                log.warn("清除Controller缓存失败: " + field + ", " + e.getMessage());
+            }
+        }
+    }
+
+    private static boolean isPluginKey(Object key, Set<ClassLoader> classLoaders) {
+        if (key instanceof Class<?> clazz) {
+            return classLoaders.contains(clazz.getClassLoader());
+        }
+        if (key instanceof MethodParameter parameter) {
+            return classLoaders.contains(parameter.getDeclaringClass().getClassLoader())
+                    || classLoaders.contains(parameter.getContainingClass().getClassLoader());
+        }
+        return false;
+    }
+
+    /**
+     * 查找缓存字段，以及持有参数解析器缓存的字段
+     */
+    private static List<Field> findCacheFields(Class<?> ownerType) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> type = ownerType; type != null && type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                boolean isCache = HANDLER_CACHE_FIELDS.contains(field.getName()) && Map.class.isAssignableFrom(field.getType());
+                if (isCache || field.getType() == HandlerMethodArgumentResolverComposite.class) {
+                    try {
+                        field.setAccessible(true);
+                        fields.add(field);
+                    } catch (RuntimeException e) {
+                        log.warn("无法访问Controller缓存: " + field + ", " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static RequestMappingInfo getMappingForMethod(Method method, Class<?> handlerType) {
+        try {
+            return (RequestMappingInfo) getMappingForMethod.invoke(handlerMapping, method, handlerType);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("解析RequestMapping失败: " + method, e);
+        }
+    }
+
+    /**
+     * 获取主程序的RequestMappingHandlerMapping，并查找需要用到的反射方法
+     */
+    private static RequestMappingHandlerMapping handlerMapping() {
+        RequestMappingHandlerMapping current = SpringUtil.getBean("requestMappingHandlerMapping", RequestMappingHandlerMapping.class);
+        if (current == handlerMapping) {
+            return current;
+        }
+        try {
+            Method method = RequestMappingHandlerMapping.class
+                    .getDeclaredMethod("getMappingForMethod", Method.class, Class.class);
+            method.setAccessible(true);
+            getMappingForMethod = method;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("RequestMappingHandlerMapping不支持getMappingForMethod", e);
+        }
+        mappingLock = findMappingLock(current);
+        handlerMapping = current;
+        return current;
+    }
+
+    /**
+     * 映射表的写锁是可重入的，持有写锁时调用register/unregister不会阻塞；
+     * 拿不到时退化为普通的锁，注销和注册之间可能有短暂的404
+     */
+    private static Lock findMappingLock(RequestMappingHandlerMapping handlerMapping) {
+        try {
+            Method getMappingRegistry = AbstractHandlerMethodMapping.class.getDeclaredMethod("getMappingRegistry");
+            getMappingRegistry.setAccessible(true);
+            Object mappingRegistry = getMappingRegistry.invoke(handlerMapping);
+            Field field = mappingRegistry.getClass().getDeclaredField("readWriteLock");
+            field.setAccessible(true);
+            return ((ReentrantReadWriteLock) field.get(mappingRegistry)).writeLock();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("获取映射表的锁失败，Controller切换不是原子的: " + e.getMessage());
+            return new ReentrantLock();
+        }
+    }
+
+    private record Registration(RequestMappingInfo info, Object handler, Method method) {
+    }
+
+    private record Publication(Plugin plugin, List<Registration> registrations) {
+    }
+}
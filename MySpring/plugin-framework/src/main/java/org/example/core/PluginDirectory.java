@@ -0,0 +1,32 @@
+package org.example.core;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author zhy
+ * @date 2024/9/23 10:20
+ * <p>
+ * 插件目录的快照
+ *
+ * @param name          插件名称
+ * @param path          插件目录
+ * @param jars          插件的jar，按文件名排序
+ * @param libraries     lib目录下的依赖jar，按文件名排序
+ * @param changeCounter 插件目录的变更计数器，没有监听时为null
+ * @param changeCount   生成快照时的计数值
+ */
+record PluginDirectory(String name, Path path, List<File> jars, List<File> libraries,
+                       AtomicLong changeCounter, long changeCount) {
+
+    /**
+     * 生成快照之后目录是否没有变更
+     *
+     * @return
+     */
+    boolean isCurrent() {
+        return changeCounter != null && changeCounter.get() == changeCount;
+    }
+}
@@ -0,0 +1,137 @@
+package org.example.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author zhy
+ * @date 2024/9/23 10:30
+ * <p>
+ * 插件根目录的索引
+ * <p>
+ * 可以配置多个根目录，同名插件以排在前面的根目录为准。启动时每个根目录只扫描一次，
+ * 之后只有插件目录有变更(监听器的计数器变化)时才重新读取这个插件的目录
+ */
+@Slf4j
+class PluginDirectoryIndex {
+    /**
+     * 插件目录下存放依赖jar的目录
+     */
+    static final String LIB_DIRECTORY = "lib";
+
+    @Getter
+    private final List<Path> roots;
+    private final PluginWatcher watcher;
+    /**
+     * 插件名称 -> 所在的根目录
+     */
+    private final ConcurrentHashMap<String, Path> rootMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PluginDirectory> directoryMap = new ConcurrentHashMap<>();
+
+    PluginDirectoryIndex(List<Path> roots, PluginWatcher watcher) {
+        this.roots = List.copyOf(roots);
+        this.watcher = watcher;
+        // 反序扫描，排在前面的根目录覆盖后面的
+        for (int i = this.roots.size() - 1; i >= 0; i--) {
+            Path root = this.roots.get(i);
+            watcher.watchRoot(root);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path path : stream) {
+                    rootMap.put(path.getFileName().toString(), root);
+                }
+            } catch (IOException e) {
+                log.warn("读取插件根目录失败: " + root + ", " + e.getMessage());
+            }
+        }
+        log.info("插件根目录: " + this.roots + ", 插件数: " + rootMap.size());
+    }
+
+    /**
+     * 所有根目录下的插件名称
+     *
+     * @return
+     */
+    List<String> names() {
+        return new ArrayList<>(new TreeSet<>(rootMap.keySet()));
+    }
+
+    /**
+     * 查找插件目录，目录没有变更时直接返回上次的快照
+     *
+     * @param pluginName
+     * @return 插件不存在时返回null
+     */
+    PluginDirectory find(String pluginName) {
+        PluginDirectory directory = directoryMap.get(pluginName);
+        if (directory != null && directory.isCurrent()) {
+            return directory;
+        }
+        AtomicLong changeCounter = watcher.counter(pluginName);
+        Path path = locate(pluginName, directory != null || changeCounter == null);
+        if (path == null) {
+            directoryMap.remove(pluginName);
+            watcher.unwatch(pluginName);
+            return null;
+        }
+        // 找到目录后才创建计数器；先监听、取计数再读目录，读目录期间发生的变更会在下次调用时重新读取
+        Path libPath = path.resolve(LIB_DIRECTORY);
+        changeCounter = watcher.watch(pluginName, path, libPath);
+        long changeCount = changeCounter == null ? 0 : changeCounter.get();
+        directory = new PluginDirectory(pluginName, path, listJars(path), listJars(libPath), changeCounter, changeCount);
+        directoryMap.put(pluginName, directory);
+        return directory;
+    }
+
+    /**
+     * 按根目录的顺序查找插件目录
+     *
+     * @param pluginName
+     * @param rescan     目录可能有变化，需要重新确认所在的根目录
+     * @return
+     */
+    private Path locate(String pluginName, boolean rescan) {
+        Path root = rootMap.get(pluginName);
+        if (root != null && !rescan) {
+            return resolve(root, pluginName);
+        }
+        for (Path candidate : roots) {
+            Path path = resolve(candidate, pluginName);
+            if (path != null && Files.isDirectory(path)) {
+                rootMap.put(pluginName, candidate);
+                return path;
+            }
+        }
+        rootMap.remove(pluginName);
+        return null;
+    }
+
+    /**
+     * 插件名称只能是根目录下的一级目录
+     */
+    private static Path resolve(Path root, String pluginName) {
+        Path path = root.resolve(pluginName).normalize();
+        if (!root.equals(path.getParent())) {
+            log.warn("插件名称不合法: " + pluginName);
+            return null;
+        }
+        return path;
+    }
+
+    private static List<File> listJars(Path directory) {
+        File[] files = directory.toFile().listFiles(file -> file.isFile() && file.getName().endsWith(".jar"));
+        if (files == null || files.length == 0) {
+            return List.of();
+        }
+        Arrays.sort(files);
+        return List.of(files);
+    }
+}
@@ -0,0 +1,97 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author zhy
+ * @date 2024/9/20 10:30
+ * <p>
+ * 插件淘汰
+ * <p>
+ * 定时卸载空闲超时的插件；插件数量或元空间估算值超过上限时，按最近使用时间从早到晚卸载，
+ * 正在调用的插件不卸载。卸载后的插件下次调用时通过loadPlugin重新加载
+ */
+@Slf4j
+@Component
+public class PluginEvictor implements InitializingBean, DisposableBean {
+    private final PluginProperties.Eviction eviction;
+    private ScheduledExecutorService scheduler;
+
+    public PluginEvictor(PluginProperties pluginProperties) {
+        this.eviction = pluginProperties.getEviction();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!eviction.isEnabled()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "plugin-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = eviction.getCheckInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::evict, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("插件淘汰已开启, 空闲时间: " + eviction.getIdleTimeout() + ", 插件数上限: " + eviction.getMaxPlugins()
+                + ", 元空间上限: " + eviction.getMaxMetaspace());
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    void evict() {
+        try {
+            long now = System.nanoTime();
+            // 只考虑空闲的插件，最久没有使用的排在前面
+            List<Plugin> candidates = new ArrayList<>();
+            List<Plugin> plugins = PluginManager.getPlugins();
+            long metaspace = 0;
+            for (Plugin plugin : plugins) {
+                metaspace += plugin.getMetaspaceBytes();
+                if (plugin.getInFlight() == 0) {
+                    candidates.add(plugin);
+                }
+            }
+            candidates.sort(Comparator.comparingLong(Plugin::getLastUsedNanos));
+            int count = plugins.size();
+            long idleTimeout = eviction.getIdleTimeout().toNanos();
+            int maxPlugins = eviction.getMaxPlugins();
+            long maxMetaspace = eviction.getMaxMetaspace() == null ? 0 : eviction.getMaxMetaspace().toBytes();
+            for (Plugin plugin : candidates) {
+                String reason;
+                if (idleTimeout > 0 && now - plugin.getLastUsedNanos() > idleTimeout) {
+                    reason = "空闲超时";
+                } else if (maxPlugins > 0 && count > maxPlugins) {
+                    reason = "插件数超过上限";
+                } else if (maxMetaspace > 0 && metaspace > maxMetaspace) {
+                    reason = "元空间超过上限";
+                } else {
+                    // 按最近使用时间排序，后面的插件更不满足条件
+                    break;
+                }
+                if (PluginManager.evictPlugin(plugin)) {
+                    count--;
+                    metaspace -= plugin.getMetaspaceBytes();
+                    log.info("淘汰插件: " + plugin.getName() + "#" + plugin.getVersion() + ", 原因: " + reason);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("淘汰插件失败: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.example.core;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhy
+ * @date 2024/9/10 11:05
+ * <p>
+ * 判断插件jar是否已经写完
+ * <p>
+ * 复制jar的过程中目录监听会收到多次修改事件，这时读到的是不完整的jar。
+ * jar的修改时间早于quietPeriod，或者连续两次看到的大小和修改时间相同且间隔不少于quietPeriod，才认为写完了；
+ * 用先写临时文件再rename的方式发布插件时修改时间一般早于quietPeriod，不需要等待
+ */
+class PluginFileSettler {
+    /**
+     * 插件名称 -> 还没有稳定的文件状态和第一次看到的时间
+     */
+    private final ConcurrentHashMap<String, Pending> pendingMap = new ConcurrentHashMap<>();
+    private volatile Duration quietPeriod;
+
+    PluginFileSettler(Duration quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    void setQuietPeriod(Duration quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * jar是否已经写完，不等待；没有写完时记录下这次的状态，下次调用时比较
+     *
+     * @param pluginName
+     * @param fileStates 插件jar和依赖jar的状态
+     * @return
+     */
+    boolean isSettled(String pluginName, List<PluginFileState> fileStates) {
+        long quietMillis = quietPeriod.toMillis();
+        long now = System.currentTimeMillis();
+        if (quietMillis <= 0 || fileStates.stream().allMatch(state -> state.lastModified() <= now - quietMillis)) {
+            pendingMap.remove(pluginName);
+            return true;
+        }
+        Pending pending = pendingMap.get(pluginName);
+        if (pending != null && pending.fileStates.equals(fileStates)) {
+            if (now - pending.since >= quietMillis) {
+                pendingMap.remove(pluginName);
+                return true;
+            }
+            return false;
+        }
+        pendingMap.put(pluginName, new Pending(fileStates, now));
+        return false;
+    }
+
+    /**
+     * 等待jar写完，最多等10个quietPeriod
+     *
+     * @param pluginName
+     * @param fileStates 当前的文件状态
+     * @param stat       重新读取文件状态
+     * @return 写完后的文件状态，超时返回null
+     * @throws Exception 读取文件状态失败
+     */
+    List<PluginFileState> awaitSettled(String pluginName, List<PluginFileState> fileStates,
+                                       Callable<List<PluginFileState>> stat) throws Exception {
+        long quietMillis = quietPeriod.toMillis();
+        long deadline = System.currentTimeMillis() + quietMillis * 10;
+        while (!isSettled(pluginName, fileStates)) {
+            if (System.currentTimeMillis() >= deadline) {
+                pendingMap.remove(pluginName);
+                return null;
+            }
+            Thread.sleep(quietMillis);
+            fileStates = stat.call();
+        }
+        return fileStates;
+    }
+
+    private record Pending(List<PluginFileState> fileStates, long since) {
+    }
+}
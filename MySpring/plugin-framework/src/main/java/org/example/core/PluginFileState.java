@@ -0,0 +1,25 @@
+package org.example.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * @author zhy
+ * @date 2024/9/10 10:40
+ * <p>
+ * 插件jar的文件状态(路径、修改时间、大小、inode)
+ * <p>
+ * 状态不变(record的equals)就认为jar没有更新，不需要重新计算md5
+ */
+record PluginFileState(String path, long lastModified, long size, Object fileKey) {
+
+    static PluginFileState of(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return new PluginFileState(file.getAbsolutePath(),
+                attributes.lastModifiedTime().toMillis(),
+                attributes.size(),
+                attributes.fileKey());
+    }
+}
@@ -0,0 +1,40 @@
+package org.example.core;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * @author zhy
+ * @date 2024/9/23 15:40
+ * <p>
+ * 插件预加载状态，加到readiness健康组里，预加载完之前不接收流量
+ * <p>
+ * 预加载完之前为OUT_OF_SERVICE，完成后有插件没有加载成功为DOWN，details的failedPlugins里是这些插件的名称
+ */
+@Component
+public class PluginHealthIndicator extends AbstractHealthIndicator {
+    private final PluginPreloader pluginPreloader;
+
+    public PluginHealthIndicator(PluginPreloader pluginPreloader) {
+        this.pluginPreloader = pluginPreloader;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        Map<String, String> failures = pluginPreloader.getFailures();
+        if (!pluginPreloader.isDone()) {
+            builder.outOfService();
+        } else if (!failures.isEmpty()) {
+            builder.down();
+        } else {
+            builder.up();
+        }
+        builder.withDetails(pluginPreloader.getResults());
+        if (!failures.isEmpty()) {
+            builder.withDetail("failedPlugins", failures.keySet());
+        }
+    }
+}
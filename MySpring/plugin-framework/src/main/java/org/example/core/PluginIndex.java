@@ -0,0 +1,26 @@
+package org.example.core;
+
+import java.util.List;
+
+/**
+ * @author zhy
+ * @date 2024/9/12 9:30
+ * <p>
+ * 插件jar的扫描结果，按jar的md5缓存到磁盘
+ *
+ * @param version     索引格式版本，格式变化后旧的索引失效
+ * @param classes     jar里所有的类，按jar里的顺序
+ * @param controllers Controller类
+ */
+record PluginIndex(int version, List<ClassMetadata> classes, List<String> controllers) {
+    static final int VERSION = 1;
+
+    static PluginIndex of(List<ClassMetadata> classes) {
+        List<String> controllers = classes.stream()
+                .filter(metadata -> metadata.annotation() == ANNOTATION_ENUM.CONTROLLER
+                        || metadata.annotation() == ANNOTATION_ENUM.REST_CONTROLLER)
+                .map(ClassMetadata::className)
+                .toList();
+        return new PluginIndex(VERSION, classes, controllers);
+    }
+}
@@ -0,0 +1,99 @@
+package org.example.core;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+
+/**
+ * @author zhy
+ * @date 2024/9/12 9:45
+ * <p>
+ * 插件扫描结果的磁盘缓存，文件名是jar的md5
+ * <p>
+ * 重启后jar没有变化就不需要再扫描jar里的每个类
+ */
+@Slf4j
+class PluginIndexCache {
+    private final File directory;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    PluginIndexCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 读取缓存
+     *
+     * @param md5
+     * @return 没有缓存或缓存不可用时返回null
+     */
+    PluginIndex read(String md5) {
+        File file = new File(directory, md5 + ".json");
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            PluginIndex index = objectMapper.readValue(file, PluginIndex.class);
+            if (index.version() != PluginIndex.VERSION) {
+                return null;
+            }
+            return index;
+        } catch (IOException e) {
+            log.warn("读取插件索引失败: " + file.getPath() + ", " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 删除已经没有对应jar的缓存，清理开始后写入的不删除
+     *
+     * @param md5s   插件目录里现有插件的md5
+     * @param before 只删除在这之前写入的缓存
+     */
+    void prune(Set<String> md5s, long before) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".json") || name.endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        int pruned = 0;
+        for (File file : files) {
+            String name = file.getName();
+            String md5 = name.endsWith(".json") ? name.substring(0, name.length() - ".json".length()) : null;
+            if ((md5 != null && md5s.contains(md5)) || file.lastModified() >= before) {
+                continue;
+            }
+            if (file.delete()) {
+                pruned++;
+            }
+        }
+        if (pruned > 0) {
+            log.info("清理过期的插件索引: " + directory.getPath() + ", 数量: " + pruned);
+        }
+    }
+
+    /**
+     * 写入缓存，先写临时文件再改名，避免其他进程读到写了一半的文件
+     *
+     * @param md5
+     * @param index
+     */
+    void write(String md5, PluginIndex index) {
+        try {
+            Files.createDirectories(directory.toPath());
+            Path temp = Files.createTempFile(directory.toPath(), md5, ".tmp");
+            objectMapper.writeValue(temp.toFile(), index);
+            Files.move(temp, new File(directory, md5 + ".json").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("写入插件索引失败: " + md5 + ", " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author zhy
+ * @date 2024/9/19 15:10
+ * <p>
+ * 插件classLoader泄漏检测
+ * <p>
+ * 每个classLoader创建时登记一个虚引用，被回收后虚引用进入队列；
+ * 卸载后经过多次GC仍然没有进入队列的，说明还有对象引用着它(bean、线程、各种缓存)，
+ * 这时需要导出堆，在堆里按classLoader的名称查找到GC Root的路径
+ */
+@Slf4j
+class PluginLeakDetector {
+    /**
+     * 卸载后经过多少次GC还没回收就认为是泄漏
+     */
+    static final int SUSPECT_GC_COUNT = 3;
+    private static final long CHECK_INTERVAL_MILLIS = 10_000;
+
+    private static final ReferenceQueue<PluginClassLoader> queue = new ReferenceQueue<>();
+    /**
+     * 虚引用本身要保持强引用，否则虚引用会先被回收
+     */
+    private static final Set<LoaderReference> references = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentHashMap<String, LongAdder> collectedMap = new ConcurrentHashMap<>();
+    /**
+     * 元空间和字节码大小的大致比例，类的元数据(常量池、方法、klass)一般是class文件的1到3倍
+     */
+    private static final int METASPACE_RATIO = 2;
+    private static volatile Thread thread;
+
+    private PluginLeakDetector() {
+    }
+
+    /**
+     * 登记插件的classLoader
+     *
+     * @param pluginName
+     * @param classLoader
+     * @return 卸载时调用LoaderReference.unloaded
+     */
+    static LoaderReference track(String pluginName, PluginClassLoader classLoader) {
+        start();
+        LoaderReference reference = new LoaderReference(pluginName, classLoader);
+        references.add(reference);
+        return reference;
+    }
+
+    /**
+     * 各插件classLoader的回收情况
+     *
+     * @return
+     */
+    static Map<String, PluginLeakStats> stats() {
+        long gcCount = gcCount();
+        Map<String, List<LoaderReference>> grouped = new TreeMap<>();
+        collectedMap.keySet().forEach(pluginName -> grouped.put(pluginName, new ArrayList<>()));
+        for (LoaderReference reference : references) {
+            grouped.computeIfAbsent(reference.pluginName, k -> new ArrayList<>()).add(reference);
+        }
+        Map<String, PluginLeakStats> result = new LinkedHashMap<>();
+        grouped.forEach((pluginName, list) -> {
+            int loaded = 0;
+            int leaking = 0;
+            long metaspaceBytes = 0;
+            List<String> suspected = new ArrayList<>();
+            for (LoaderReference reference : list) {
+                metaspaceBytes += reference.getMetaspaceBytes();
+                if (reference.unloadedGcCount < 0) {
+                    loaded++;
+                    continue;
+                }
+                leaking++;
+                if (reference.isSuspected(gcCount)) {
+                    suspected.add(reference.loaderName);
+                }
+            }
+            LongAdder collected = collectedMap.get(pluginName);
+            result.put(pluginName, new PluginLeakStats(pluginName, loaded, leaking, suspected,
+                    collected == null ? 0 : collected.sum(), metaspaceBytes));
+        });
+        return result;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void start() {
+        if (thread != null) {
+            return;
+        }
+        synchronized (PluginLeakDetector.class) {
+            if (thread != null) {
+                return;
+            }
+            Thread t = new Thread(PluginLeakDetector::run, "plugin-leak-detector");
+            t.setDaemon(true);
+            t.start();
+            thread = t;
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            Reference<? extends PluginClassLoader> polled;
+            try {
+                polled = queue.remove(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            while (polled != null) {
+                LoaderReference reference = (LoaderReference) polled;
+                references.remove(reference);
+                collectedMap.computeIfAbsent(reference.pluginName, k -> new LongAdder()).increment();
+                log.info("插件classLoader已回收: " + reference.loaderName);
+                polled = queue.poll();
+            }
+            check();
+        }
+    }
+
+    /**
+     * 检查卸载后一直没有回收的classLoader，每个只报告一次
+     */
+    private static void check() {
+        long gcCount = gcCount();
+        for (LoaderReference reference : references) {
+            if (!reference.reported && reference.isSuspected(gcCount)) {
+                reference.reported = true;
+                log.warn("插件classLoader卸载后经过" + (gcCount - reference.unloadedGcCount) + "次GC仍未回收: "
+                        + reference.loaderName + ", 元空间估算: " + reference.getMetaspaceBytes()
+                        + "字节, 可以通过actuator的heapdump导出堆查找该classLoader到GC Root的路径");
+            }
+        }
+    }
+
+    static class LoaderReference extends PhantomReference<PluginClassLoader> {
+        private final String pluginName;
+        private final String loaderName;
+        /**
+         * 只引用计数器，不引用classLoader
+         */
+        private final LongAdder definedBytes;
+        private volatile long unloadedGcCount = -1;
+        private volatile boolean reported;
+
+        private LoaderReference(String pluginName, PluginClassLoader classLoader) {
+            super(classLoader, queue);
+            this.pluginName = pluginName;
+            this.loaderName = classLoader.getName();
+            this.definedBytes = classLoader.getDefinedBytes();
+        }
+
+        /**
+         * 按这个classLoader自己定义的字节码估算元空间，不受其他插件同时加载的影响，
+         * 包括加载完成后用到时才定义的类
+         *
+         * @return
+         */
+        long getMetaspaceBytes() {
+            return definedBytes.sum() * METASPACE_RATIO;
+        }
+
+        /**
+         * 插件已卸载，从这时开始计算GC次数
+         */
+        void unloaded() {
+            if (unloadedGcCount < 0) {
+                unloadedGcCount = gcCount();
+            }
+        }
+
+        private boolean isSuspected(long gcCount) {
+            return unloadedGcCount >= 0 && gcCount - unloadedGcCount >= SUSPECT_GC_COUNT;
+        }
+    }
+}
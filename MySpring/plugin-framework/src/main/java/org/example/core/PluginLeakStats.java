@@ -0,0 +1,20 @@
+package org.example.core;
+
+import java.util.List;
+
+/**
+ * @author zhy
+ * @date 2024/9/19 15:20
+ * <p>
+ * 插件classLoader的回收情况
+ *
+ * @param pluginName     插件名称
+ * @param loaded         使用中的classLoader数量
+ * @param leaking        已卸载但还没有被回收的classLoader数量
+ * @param suspected      卸载后经过多次GC仍未回收，疑似泄漏的classLoader
+ * @param collected      已回收的classLoader数量
+ * @param metaspaceBytes 未回收的classLoader占用的元空间估算值
+ */
+public record PluginLeakStats(String pluginName, int loaded, int leaking, List<String> suspected,
+                              long collected, long metaspaceBytes) {
+}
@@ -0,0 +1,81 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * @author zhy
+ * @date 2024/9/12 16:40
+ * <p>
+ * 同一个插件同时只有一个线程加载，其他线程等待同一个加载结果
+ * <p>
+ * 插件初始化过程中(bean初始化、预热、PluginContextCustomizer)再次加载同一个插件时，
+ * 加载的线程会等待自己的结果而死锁，这种情况直接抛出异常，让这次加载失败
+ */
+@Slf4j
+class PluginLoadFlights {
+    private final ConcurrentHashMap<String, LoadFlight> loadingMap = new ConcurrentHashMap<>();
+    /**
+     * 加载结束时通知有多少个线程在等待这次加载
+     */
+    private final ObjIntConsumer<String> coalesced;
+
+    PluginLoadFlights(ObjIntConsumer<String> coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * 加载插件，已经有线程在加载时等待它的结果
+     *
+     * @param pluginName
+     * @param loader     实际的加载
+     * @return 等待的线程在加载失败时得到null，加载的线程抛出原来的异常
+     * @throws IllegalStateException 当前线程正在加载这个插件
+     */
+    Plugin load(String pluginName, Function<String, Plugin> loader) {
+        LoadFlight flight = new LoadFlight();
+        LoadFlight existing = loadingMap.putIfAbsent(pluginName, flight);
+        if (existing != null) {
+            if (existing.thread == Thread.currentThread()) {
+                throw new IllegalStateException("插件 " + pluginName + " 正在被当前线程加载, 不能在加载过程中再次加载");
+            }
+            existing.waiters.incrementAndGet();
+            try {
+                return existing.future.join();
+            } catch (CompletionException | CancellationException e) {
+                log.error("加载插件 " + pluginName + " 失败: " + e.getMessage());
+                return null;
+            }
+        }
+        try {
+            Plugin plugin = loader.apply(pluginName);
+            flight.future.complete(plugin);
+            return plugin;
+        } catch (RuntimeException | Error e) {
+            flight.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingMap.remove(pluginName, flight);
+            int waiters = flight.waiters.get();
+            if (waiters > 0) {
+                coalesced.accept(pluginName, waiters);
+            }
+        }
+    }
+
+    /**
+     * 一次正在进行的加载
+     */
+    private static class LoadFlight {
+        private final CompletableFuture<Plugin> future = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final Thread thread = Thread.currentThread();
+    }
+}
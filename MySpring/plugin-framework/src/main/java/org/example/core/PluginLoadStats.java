@@ -0,0 +1,63 @@
+package org.example.core;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author zhy
+ * @date 2024/9/13 15:10
+ * <p>
+ * 插件加载统计
+ */
+@Getter
+public class PluginLoadStats {
+    private final String pluginName;
+    /**
+     * 实际执行的加载次数
+     */
+    private final LongAdder loads = new LongAdder();
+    /**
+     * 加载失败次数
+     */
+    private final LongAdder failures = new LongAdder();
+    /**
+     * 等待其他线程加载结果的调用次数
+     */
+    private final LongAdder coalesced = new LongAdder();
+    /**
+     * 单次加载最多有多少个调用在等待
+     */
+    private final AtomicLong maxCoalesced = new AtomicLong();
+    /**
+     * 被淘汰的次数
+     */
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * 最近一次加载耗时
+     */
+    private final AtomicLong lastLoadMillis = new AtomicLong();
+
+    PluginLoadStats(String pluginName) {
+        this.pluginName = pluginName;
+    }
+
+    void loaded(boolean success, long millis) {
+        loads.increment();
+        if (!success) {
+            failures.increment();
+        }
+        lastLoadMillis.set(millis);
+    }
+
+    void evicted() {
+        evictions.increment();
+    }
+
+    void coalesced(int waiters) {
+        coalesced.add(waiters);
+        maxCoalesced.accumulateAndGet(waiters, Math::max);
+        PluginMetrics.recordCoalesced(pluginName, waiters);
+    }
+}
@@ -2,12 +2,19 @@ package org.example.core;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.util.DigestUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.math.BigInteger;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author zhy
@@ -17,12 +24,111 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 @Slf4j
 public class PluginManager {
-    private static String pluginPath;
     private static ConcurrentHashMap<String, Plugin> pluginMap = new ConcurrentHashMap<>();
+    private static PluginWatcher watcher;
+    private static volatile PluginDirectoryIndex directoryIndex;
+    private static volatile PluginIndexCache indexCache;
+    private static ConcurrentHashMap<String, Object> lockMap = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, PluginLoadStats> loadStatsMap = new ConcurrentHashMap<>();
+    private static PluginFileSettler fileSettler = new PluginFileSettler(Duration.ofSeconds(2));
+    private static PluginLoadFlights loadFlights = new PluginLoadFlights((pluginName, waiters) -> statsFor(pluginName).coalesced(waiters));
 
     static {
+        watcher = new PluginWatcher();
+    }
+
+    /**
+     * 设置插件根目录，~表示运行目录，没有配置时使用运行目录下的plugins
+     *
+     * @param pluginPaths
+     * @param workPath    扫描结果缓存和共享依赖的目录，没有配置时使用第一个插件根目录的上级目录
+     */
+    static synchronized void configure(List<String> pluginPaths, String workPath) {
         String currentPath = System.getProperty("user.dir");
-        pluginPath = currentPath + File.separator + "plugins";
+        List<Path> roots = new ArrayList<>();
+        if (pluginPaths == null || pluginPaths.isEmpty()) {
+            roots.add(Paths.get(currentPath, "plugins"));
+        } else {
+            for (String pluginPath : pluginPaths) {
+                roots.add(resolvePath(currentPath, pluginPath));
+            }
+        }
+        Path work;
+        if (StringUtils.isNotBlank(workPath)) {
+            work = resolvePath(currentPath, workPath);
+        } else {
+            // 放在插件目录旁边，不放在插件目录里，避免被当成插件
+            Path parent = roots.get(0).getParent();
+            work = parent == null ? Paths.get(currentPath) : parent;
+        }
+        indexCache = new PluginIndexCache(work.resolve("plugins-index").toFile());
+        SharedLibraries.configure(work.resolve("plugins-lib"));
+        directoryIndex = new PluginDirectoryIndex(roots, watcher);
+        pruneCaches(directoryIndex, indexCache, SharedLibraries.getInstance());
+    }
+
+    private static Path resolvePath(String currentPath, String pluginPath) {
+        String path = pluginPath.trim();
+        if (path.startsWith("~")) {
+            path = currentPath + path.substring(1);
+        }
+        return Paths.get(currentPath).resolve(path).normalize();
+    }
+
+    /**
+     * 启动时在后台清理已经不存在的jar留下的扫描结果缓存和共享依赖，
+     * 只清理开始清理前写入的文件，清理期间新加载的插件不受影响
+     */
+    private static void pruneCaches(PluginDirectoryIndex directoryIndex, PluginIndexCache indexCache, SharedLibraries sharedLibraries) {
+        long start = System.currentTimeMillis();
+        Thread thread = new Thread(() -> {
+            Set<String> md5s = new HashSet<>();
+            Set<String> libraryMd5s = new HashSet<>();
+            for (String pluginName : directoryIndex.names()) {
+                PluginDirectory directory = directoryIndex.find(pluginName);
+                if (directory == null) {
+                    continue;
+                }
+                try {
+                    List<String> md5List = new ArrayList<>();
+                    for (File file : directory.jars()) {
+                        md5List.add(getFileMd5(file));
+                    }
+                    Map<File, String> libraryMd5Map = new LinkedHashMap<>();
+                    for (File library : directory.libraries()) {
+                        libraryMd5Map.put(library, getFileMd5(library));
+                    }
+                    if (!md5List.isEmpty()) {
+                        md5s.add(pluginMd5(md5List, libraryMd5Map));
+                    }
+                    libraryMd5s.addAll(libraryMd5Map.values());
+                } catch (Exception e) {
+                    // 不知道这个插件用到哪些缓存，这次不清理
+                    log.warn("清理插件缓存失败: " + pluginName + ", " + e.getMessage());
+                    return;
+                }
+            }
+            indexCache.prune(md5s, start);
+            sharedLibraries.prune(libraryMd5s, start);
+        }, "plugin-cache-prune");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * jar修改后多久没有变化才加载，避免加载复制到一半的jar
+     *
+     * @param quietPeriod
+     */
+    static void setQuietPeriod(Duration quietPeriod) {
+        fileSettler.setQuietPeriod(quietPeriod);
+    }
+
+    private static PluginDirectoryIndex directoryIndex() {
+        if (directoryIndex == null) {
+            configure(null, null);
+        }
+        return directoryIndex;
     }
 
     /**
@@ -32,51 +138,152 @@ public class PluginManager {
      * @return
      */
     public static Plugin loadPlugin(String pluginName) {
-        File pluginDirectory = new File(pluginPath + File.separator + pluginName);
-        if (!pluginDirectory.exists()) {
-            boolean mkdirs = pluginDirectory.mkdirs();
-            if (!mkdirs) {
-                log.warn("创建目录失败: " + pluginDirectory.getPath());
-                return null;
+        Plugin plugin = pluginMap.get(pluginName);
+        // 插件目录没有变更就直接返回，不需要读取文件
+        if (plugin != null && plugin.isCurrent()) {
+            plugin.touch();
+            return plugin;
+        }
+        // 不存在的插件不分配加载锁，随意的插件名称不会让锁越来越多
+        if (plugin == null && directoryIndex().find(pluginName) == null) {
+            log.warn("插件不存在: " + pluginName);
+            return null;
+        }
+        // 同一个插件同时只有一个线程加载，其他线程等待同一个加载结果
+        return loadFlights.load(pluginName, name -> {
+            // 不同插件使用不同的锁，可以并行加载
+            synchronized (lockFor(name)) {
+                return doLoadPlugin(name);
             }
+        });
+    }
+
+    private static Plugin doLoadPlugin(String pluginName) {
+        Plugin plugin = pluginMap.get(pluginName);
+        if (plugin != null && plugin.isCurrent()) {
+            return plugin;
+        }
+        PluginDirectory directory = directoryIndex().find(pluginName);
+        if (directory == null) {
+            log.warn("插件不存在: " + pluginName);
+            return null;
         }
-        File[] files = pluginDirectory.listFiles();
-        if (files == null || files.length == 0) {
+        AtomicLong changeCounter = directory.changeCounter();
+        long changeCount = directory.changeCount();
+        List<File> files = directory.jars();
+        if (files.isEmpty()) {
             log.warn("插件列表为空");
             return null;
         }
-        File file = files[0];
-        String md5;
+        List<File> libraries = directory.libraries();
+        List<PluginFileState> fileStates;
+        try {
+            fileStates = fileStates(files, libraries);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return null;
+        }
+        // 文件状态没有变化，jar没有更新
+        if (plugin != null && fileStates.equals(plugin.getFileStates())) {
+            plugin.watch(changeCounter, changeCount);
+            return plugin;
+        }
+        // jar可能还在复制中，旧版本继续使用，不记录变更计数，下次调用时重新检查；没有旧版本时等待写完
+        if (!fileSettler.isSettled(pluginName, fileStates)) {
+            if (plugin != null) {
+                log.info("插件 " + pluginName + " 的jar还在写入, 暂不切换");
+                return plugin;
+            }
+            try {
+                fileStates = fileSettler.awaitSettled(pluginName, fileStates, () -> fileStates(files, libraries));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                return null;
+            }
+            if (fileStates == null) {
+                log.error("加载插件 " + pluginName + " 失败, jar一直在写入");
+                return null;
+            }
+        }
+        List<String> md5List = new ArrayList<>();
+        Map<File, String> libraryMd5Map = new LinkedHashMap<>();
         try {
-            md5 = getFileMd5(file);
+            for (File file : files) {
+                md5List.add(getFileMd5(file));
+            }
+            for (File library : libraries) {
+                libraryMd5Map.put(library, getFileMd5(library));
+            }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
             return null;
         }
-        if (StringUtils.isEmpty(md5)) {
+        if (md5List.stream().anyMatch(StringUtils::isEmpty)) {
             log.error("加载插件 " + pluginName + " 失败");
             return null;
         }
-        Plugin plugin;
-        if (pluginMap.containsKey(pluginName)) {
-            plugin = pluginMap.get(pluginName);
+        String md5 = pluginMd5(md5List, libraryMd5Map);
+        if (plugin != null && md5.equals(plugin.getMd5())) {
             // 如果jar没有更新就直接返回
-            if (md5.equals(plugin.getMd5())) {
-                return plugin;
-            }
-            pluginMap.remove(pluginName);
-        } else {
-            plugin = new Plugin();
-            plugin.setMd5(md5);
+            plugin.setFileStates(fileStates);
+            plugin.watch(changeCounter, changeCount);
+            return plugin;
         }
-        boolean load = plugin.load(file);
-        // 如果插件加载失败，就必须卸载插件
+        // 新版本在旁边完整加载，旧版本在此期间继续提供服务
+        Plugin newPlugin = new Plugin();
+        newPlugin.setName(pluginName);
+        newPlugin.setMd5(md5);
+        newPlugin.setFileStates(fileStates);
+        newPlugin.watch(changeCounter, changeCount);
+        long start = System.currentTimeMillis();
+        boolean load = newPlugin.load(files, libraryMd5Map, indexCache);
+        statsFor(pluginName).loaded(load, System.currentTimeMillis() - start);
+        // 如果插件加载失败，就必须卸载插件，旧版本继续使用，直到目录再次变更
         if (!load) {
-            plugin.unload();
-            return null;
+            newPlugin.unload();
+            if (plugin != null) {
+                plugin.watch(changeCounter, changeCount);
+            }
+            return plugin;
+        }
+        // Controller映射一次性切换到新版本，失败时保留旧版本的映射
+        if (!newPlugin.publish()) {
+            newPlugin.unload();
+            if (plugin != null) {
+                plugin.watch(changeCounter, changeCount);
+            }
+            return plugin;
+        }
+        pluginMap.put(pluginName, newPlugin);
+        // 旧版本等正在执行的调用结束后再卸载
+        if (plugin != null) {
+            plugin.retire();
+            log.info("插件 " + pluginName + " 已切换到新版本: " + md5);
+        }
+        return newPlugin;
+    }
+
+    /**
+     * 加载插件并开始一次调用，调用结束后必须调用Plugin.release
+     * 在调用期间插件被替换时，旧版本会等调用结束后再卸载
+     *
+     * @param pluginName
+     * @return
+     */
+    public static Plugin acquirePlugin(String pluginName) {
+        while (true) {
+            Plugin plugin = loadPlugin(pluginName);
+            if (plugin == null) {
+                return null;
+            }
+            if (plugin.acquire()) {
+                return plugin;
+            }
+            // 刚好被新版本替换或被卸载，重新获取
         }
-        pluginMap.put(pluginName, plugin);
-        return plugin;
     }
 
     /**
@@ -88,12 +295,117 @@ public class PluginManager {
         if (!pluginMap.containsKey(pluginName)) {
             return;
         }
-        Plugin plugin = pluginMap.get(pluginName);
-        if (plugin == null) {
-            return;
+        synchronized (lockFor(pluginName)) {
+            Plugin plugin = pluginMap.remove(pluginName);
+            if (plugin == null) {
+                return;
+            }
+            plugin.unpublish();
+            // 等正在执行的调用结束后再卸载
+            plugin.retire();
+        }
+    }
+
+    /**
+     * 淘汰插件，插件已经被替换、卸载或正在调用时不处理
+     *
+     * @param plugin
+     * @return 是否卸载
+     */
+    static boolean evictPlugin(Plugin plugin) {
+        String pluginName = plugin.getName();
+        synchronized (lockFor(pluginName)) {
+            if (plugin.getInFlight() > 0 || !pluginMap.remove(pluginName, plugin)) {
+                return false;
+            }
+            plugin.unpublish();
+            plugin.retire();
+        }
+        statsFor(pluginName).evicted();
+        return true;
+    }
+
+    /**
+     * 已加载的插件
+     *
+     * @return
+     */
+    static List<Plugin> getPlugins() {
+        return new ArrayList<>(pluginMap.values());
+    }
+
+    /**
+     * 插件根目录下的所有插件
+     *
+     * @return
+     */
+    public static List<String> getPluginNames() {
+        return directoryIndex().names();
+    }
+
+    /**
+     * 插件是否存在(已加载或插件目录存在)，不会加载插件
+     *
+     * @param pluginName
+     * @return
+     */
+    public static boolean hasPlugin(String pluginName) {
+        return pluginMap.containsKey(pluginName) || directoryIndex().find(pluginName) != null;
+    }
+
+    /**
+     * 插件加载统计
+     *
+     * @return
+     */
+    public static Map<String, PluginLoadStats> getLoadStats() {
+        return Collections.unmodifiableMap(loadStatsMap);
+    }
+
+    /**
+     * 各插件classLoader的回收情况
+     *
+     * @return
+     */
+    public static Map<String, PluginLeakStats> getLeakStats() {
+        return PluginLeakDetector.stats();
+    }
+
+    private static Object lockFor(String pluginName) {
+        return lockMap.computeIfAbsent(pluginName, k -> new Object());
+    }
+
+    private static PluginLoadStats statsFor(String pluginName) {
+        PluginLoadStats stats = loadStatsMap.get(pluginName);
+        if (stats != null) {
+            return stats;
+        }
+        return loadStatsMap.computeIfAbsent(pluginName, k -> {
+            PluginLoadStats loadStats = new PluginLoadStats(k);
+            PluginMetrics.register(loadStats);
+            return loadStats;
+        });
+    }
+
+    private static List<PluginFileState> fileStates(List<File> files, List<File> libraries) throws Exception {
+        List<PluginFileState> fileStates = new ArrayList<>();
+        for (File file : files) {
+            fileStates.add(PluginFileState.of(file));
+        }
+        for (File library : libraries) {
+            fileStates.add(PluginFileState.of(library));
+        }
+        return fileStates;
+    }
+
+    /**
+     * 插件的md5，多个jar时由所有jar的md5一起决定
+     */
+    private static String pluginMd5(List<String> md5List, Map<File, String> libraryMd5Map) {
+        if (md5List.size() == 1 && libraryMd5Map.isEmpty()) {
+            return md5List.get(0);
         }
-        plugin.unload();
-        pluginMap.remove(pluginName);
+        return DigestUtils.md5DigestAsHex((md5List + "" + libraryMd5Map.values()).getBytes(StandardCharsets.UTF_8));
     }
 
     private static String getFileMd5(File file) throws Exception {
@@ -113,5 +425,4 @@ public class PluginManager {
         }
         return md5;
     }
-
 }
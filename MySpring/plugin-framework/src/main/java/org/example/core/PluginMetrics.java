@@ -0,0 +1,168 @@
+package org.example.core;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * @author zhy
+ * @date 2024/9/13 15:30
+ * <p>
+ * 插件指标，插件是运行时加载的，第一次加载时再注册对应的指标
+ */
+@Component
+public class PluginMetrics implements MeterBinder {
+    private static volatile MeterRegistry registry;
+
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        registry = meterRegistry;
+        PluginManager.getLoadStats().values().forEach(PluginMetrics::register);
+    }
+
+    static void register(PluginLoadStats stats) {
+        MeterRegistry meterRegistry = registry;
+        if (meterRegistry == null) {
+            return;
+        }
+        String pluginName = stats.getPluginName();
+        FunctionCounter.builder("plugin.load", stats, s -> s.getLoads().sum())
+                .description("插件实际执行的加载次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.load.failures", stats, s -> s.getFailures().sum())
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.load.coalesced", stats, s -> s.getCoalesced().sum())
+                .description("等待其他线程加载结果的调用次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.evictions", stats, s -> s.getEvictions().sum())
+                .description("插件被淘汰的次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        Gauge.builder("plugin.load.last.millis", stats, s -> s.getLastLoadMillis().get())
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        Gauge.builder("plugin.classloader.loaded", () -> leakStats(pluginName).loaded())
+                .description("使用中的classLoader数量")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        Gauge.builder("plugin.classloader.leaking", () -> leakStats(pluginName).leaking())
+                .description("已卸载但还没有被回收的classLoader数量")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.classloader.collected", pluginName, name -> leakStats(name).collected())
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        Gauge.builder("plugin.classloader.metaspace", () -> leakStats(pluginName).metaspaceBytes())
+                .description("未回收的classLoader占用的元空间估算值")
+                .baseUnit("bytes")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+    }
+
+    static void register(PluginBulkhead bulkhead) {
+        MeterRegistry meterRegistry = registry;
+        if (meterRegistry == null) {
+            return;
+        }
+        String pluginName = bulkhead.getPluginName();
+        Gauge.builder("plugin.bulkhead.queue", bulkhead, PluginBulkhead::getQueueDepth)
+                .description("排队中的调用数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        Gauge.builder("plugin.bulkhead.active", bulkhead, PluginBulkhead::getActiveCount)
+                .description("执行中的调用数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.bulkhead.rejections", bulkhead, b -> b.getRejections().sum())
+                .description("并发数和排队数都已满被拒绝的调用次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.bulkhead.timeouts", bulkhead, b -> b.getTimeouts().sum())
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.bulkhead.queued", bulkhead, b -> b.getQueued().sum())
+                .description("没有空闲线程需要排队的调用次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+    }
+
+    static void register(PluginRateLimiter rateLimiter) {
+        MeterRegistry meterRegistry = registry;
+        if (meterRegistry == null) {
+            return;
+        }
+        String pluginName = rateLimiter.getPluginName();
+        FunctionCounter.builder("plugin.ratelimit.throttled", rateLimiter, r -> r.getThrottled().sum())
+                .description("超过限流被拒绝的调用次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.ratelimit.delayed", rateLimiter, r -> r.getDelayed().sum())
+                .description("排队等待令牌的调用次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+    }
+
+    static void register(AdaptiveConcurrencyLimiter concurrencyLimiter) {
+        MeterRegistry meterRegistry = registry;
+        if (meterRegistry == null) {
+            return;
+        }
+        String pluginName = concurrencyLimiter.getPluginName();
+        Gauge.builder("plugin.concurrency.limit", concurrencyLimiter, AdaptiveConcurrencyLimiter::getLimit)
+                .description("自适应的并发上限")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        Gauge.builder("plugin.concurrency.inflight", concurrencyLimiter, AdaptiveConcurrencyLimiter::getInFlight)
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+        FunctionCounter.builder("plugin.concurrency.rejections", concurrencyLimiter, c -> c.getRejections().sum())
+                .description("超过并发上限被拒绝的调用次数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry);
+    }
+
+    static void register(PluginCircuitBreaker circuitBreaker, String type, String name) {
+        MeterRegistry meterRegistry = registry;
+        if (meterRegistry == null) {
+            return;
+        }
+        // 插件: plugin.circuit.*，外部地址: plugin.host.circuit.*
+        String prefix = "plugin".equals(type) ? "plugin.circuit" : "plugin." + type + ".circuit";
+        Gauge.builder(prefix + ".state", circuitBreaker, c -> c.getState().ordinal())
+                .description("熔断状态, 0: CLOSED, 1: OPEN, 2: HALF_OPEN")
+                .tag(type, name)
+                .register(meterRegistry);
+        FunctionCounter.builder(prefix + ".not.permitted", circuitBreaker, c -> c.getNotPermitted().sum())
+                .description("熔断期间被拒绝的调用次数")
+                .tag(type, name)
+                .register(meterRegistry);
+        FunctionCounter.builder(prefix + ".opened", circuitBreaker, c -> c.getOpened().sum())
+                .tag(type, name)
+                .register(meterRegistry);
+    }
+
+    private static PluginLeakStats leakStats(String pluginName) {
+        PluginLeakStats stats = PluginLeakDetector.stats().get(pluginName);
+        return stats == null ? new PluginLeakStats(pluginName, 0, 0, List.of(), 0, 0) : stats;
+    }
+
+    static void recordCoalesced(String pluginName, int waiters) {
+        MeterRegistry meterRegistry = registry;
+        if (meterRegistry == null) {
+            return;
+        }
+        DistributionSummary.builder("plugin.load.coalesced.callers")
+                .description("单次加载合并的调用数")
+                .tag("plugin", pluginName)
+                .register(meterRegistry)
+                .record(waiters);
+    }
+}
@@ -0,0 +1,129 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author zhy
+ * @date 2024/9/23 15:20
+ * <p>
+ * 启动时预加载插件
+ * <p>
+ * 应用启动后并行加载所有插件根目录下的插件，加载完调用主程序的PluginWarmer预热，
+ * 全部完成之前PluginHealthIndicator返回OUT_OF_SERVICE，就绪检查不通过，不会有流量进来；
+ * 有插件加载失败、超时或预热失败时返回DOWN
+ */
+@Slf4j
+@Component
+public class PluginPreloader implements ApplicationRunner {
+    private final PluginProperties.Preload preload;
+    private final ObjectProvider<PluginWarmer> warmers;
+    /**
+     * 插件名称 -> 预加载结果
+     */
+    private final Map<String, String> results = new ConcurrentHashMap<>();
+    private volatile boolean done;
+
+    public PluginPreloader(PluginProperties pluginProperties, ObjectProvider<PluginWarmer> warmers) {
+        this.preload = pluginProperties.getPreload();
+        this.warmers = warmers;
+        this.done = !preload.isEnabled();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!preload.isEnabled()) {
+            return;
+        }
+        Thread thread = new Thread(this::preload, "plugin-preload");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 是否已经预加载完
+     *
+     * @return
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * 各插件的预加载结果
+     *
+     * @return
+     */
+    public Map<String, String> getResults() {
+        return new TreeMap<>(results);
+    }
+
+    /**
+     * 预加载没有成功的插件，包括加载失败、超时和预热失败
+     *
+     * @return 插件名称 -> 预加载结果
+     */
+    public Map<String, String> getFailures() {
+        Map<String, String> failures = new TreeMap<>();
+        results.forEach((pluginName, result) -> {
+            if (!"ready".equals(result) && !"loading".equals(result)) {
+                failures.put(pluginName, result);
+            }
+        });
+        return failures;
+    }
+
+    private void preload() {
+        long start = System.currentTimeMillis();
+        List<String> pluginNames = PluginManager.getPluginNames();
+        int parallelism = preload.getParallelism() > 0 ? preload.getParallelism() : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, pluginNames.size())), runnable -> {
+            Thread thread = new Thread(runnable, "plugin-preload-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            pluginNames.forEach(pluginName -> results.put(pluginName, "loading"));
+            List<Callable<Void>> tasks = pluginNames.stream().<Callable<Void>>map(pluginName -> () -> {
+                results.put(pluginName, preload(pluginName));
+                return null;
+            }).toList();
+            executor.invokeAll(tasks, preload.getTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            results.replaceAll((pluginName, result) -> "loading".equals(result) ? "timeout" : result);
+            done = true;
+        }
+        log.info("插件预加载完成, 耗时: " + (System.currentTimeMillis() - start) + "ms, " + getResults());
+    }
+
+    private String preload(String pluginName) {
+        Plugin plugin = PluginManager.acquirePlugin(pluginName);
+        if (plugin == null) {
+            return "failed";
+        }
+        try {
+            for (PluginWarmer warmer : warmers) {
+                warmer.warmUp(plugin);
+            }
+            return "ready";
+        } catch (Exception e) {
+            log.warn("插件预热失败: " + pluginName + ", " + e.getMessage());
+            return "loaded, warm-up failed: " + e.getMessage();
+        } finally {
+            plugin.release();
+        }
+    }
+}
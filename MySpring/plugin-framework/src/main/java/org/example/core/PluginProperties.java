@@ -0,0 +1,320 @@
+package org.example.core;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhy
+ * @date 2024/9/20 10:15
+ * <p>
+ * 插件配置，对应application.yml里的plugin
+ */
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "plugin")
+public class PluginProperties implements InitializingBean {
+    /**
+     * 主程序包名
+     */
+    private String mainPackage;
+    /**
+     * 主程序提供给插件的接口所在的包，这些包里的类先从主程序加载，以.*结尾时包含子包
+     */
+    private List<String> apiPackages;
+    /**
+     * 插件根目录，可以配置多个，~表示运行目录
+     */
+    private List<String> pluginPath;
+    /**
+     * 扫描结果缓存(plugins-index)和共享依赖(plugins-lib)的存放目录，~表示运行目录，没有配置时放在第一个插件根目录旁边
+     */
+    private String workPath;
+    /**
+     * jar修改后多久没有变化才加载，避免加载复制到一半的jar，为0时不等待
+     */
+    private Duration quietPeriod = Duration.ofSeconds(2);
+    /**
+     * 启动时预加载
+     */
+    private Preload preload = new Preload();
+    /**
+     * 插件淘汰
+     */
+    private Eviction eviction = new Eviction();
+    /**
+     * 插件舱壁
+     */
+    private Bulkhead bulkhead = new Bulkhead();
+    /**
+     * 插件限流
+     */
+    private RateLimit rateLimit = new RateLimit();
+    /**
+     * 插件和插件访问的外部地址的熔断
+     */
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    @Override
+    public void afterPropertiesSet() {
+        PluginClassLoader.setApiPackages(apiPackages);
+        PluginManager.setQuietPeriod(quietPeriod);
+        PluginManager.configure(pluginPath, workPath);
+    }
+
+    @Getter
+    @Setter
+    public static class Preload {
+        /**
+         * 是否在启动时加载所有插件
+         */
+        private boolean enabled = true;
+        /**
+         * 同时加载的插件数，为0时和cpu核数一致
+         */
+        private int parallelism;
+        /**
+         * 预加载的期限，超时后不再等待，直接就绪
+         */
+        private Duration timeout = Duration.ofMinutes(5);
+    }
+
+    @Getter
+    @Setter
+    public static class Eviction {
+        /**
+         * 空闲多久后卸载，为0时不按空闲时间卸载
+         */
+        private Duration idleTimeout = Duration.ZERO;
+        /**
+         * 最多同时加载的插件数，为0时不限制
+         */
+        private int maxPlugins;
+        /**
+         * 已加载插件的元空间估算值上限，不配置时不限制
+         */
+        private DataSize maxMetaspace;
+        /**
+         * 检查间隔
+         */
+        private Duration checkInterval = Duration.ofSeconds(30);
+
+        boolean isEnabled() {
+            return idleTimeout.toMillis() > 0 || maxPlugins > 0 || maxMetaspace != null;
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class Bulkhead {
+        /**
+         * 是否在插件自己的线程池里调用插件
+         */
+        private boolean enabled = true;
+        /**
+         * 每个插件同时执行的调用数
+         */
+        private int maxConcurrent = 10;
+        /**
+         * 每个插件排队的调用数，为0时不排队
+         */
+        private int queueCapacity = 100;
+        /**
+         * 调用超时，为0时不限制
+         */
+        private Duration timeout = Duration.ofSeconds(30);
+        /**
+         * 插件名 -> 单独的限制，没有配置的项使用上面的默认值
+         */
+        private Map<String, BulkheadLimit> plugins = new HashMap<>();
+
+        BulkheadLimit limitFor(String pluginName) {
+            BulkheadLimit limit = plugins.get(pluginName);
+            BulkheadLimit result = new BulkheadLimit();
+            result.setMaxConcurrent(limit == null || limit.getMaxConcurrent() == null ? maxConcurrent : limit.getMaxConcurrent());
+            result.setQueueCapacity(limit == null || limit.getQueueCapacity() == null ? queueCapacity : limit.getQueueCapacity());
+            result.setTimeout(limit == null || limit.getTimeout() == null ? timeout : limit.getTimeout());
+            return result;
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class BulkheadLimit {
+        private Integer maxConcurrent;
+        private Integer queueCapacity;
+        private Duration timeout;
+    }
+
+    @Getter
+    @Setter
+    public static class RateLimit {
+        /**
+         * 是否限流
+         */
+        private boolean enabled = true;
+        /**
+         * 每秒的调用数，为0时不限制
+         */
+        private double permitsPerSecond;
+        /**
+         * 允许的突发调用数
+         */
+        private int burst = 10;
+        /**
+         * 超过限流时最多排队等待多久，为0时直接拒绝
+         */
+        private Duration maxWait = Duration.ZERO;
+        /**
+         * 是否根据耗时自动调整并发数
+         */
+        private boolean adaptive;
+        private int minConcurrency = 1;
+        private int maxConcurrency = 100;
+        /**
+         * 耗时超过这个值就降低并发数
+         */
+        private Duration latencyThreshold = Duration.ofSeconds(1);
+        /**
+         * 降低并发数时乘以的系数
+         */
+        private double backoffRatio = 0.9;
+        /**
+         * 插件名 -> 单独的限流，没有配置的项使用上面的默认值
+         */
+        private Map<String, RateLimitRule> plugins = new ConcurrentHashMap<>();
+
+        RateLimitRule ruleFor(String pluginName) {
+            RateLimitRule rule = plugins.get(pluginName);
+            RateLimitRule result = new RateLimitRule();
+            result.setPermitsPerSecond(rule == null || rule.getPermitsPerSecond() == null ? permitsPerSecond : rule.getPermitsPerSecond());
+            result.setBurst(rule == null || rule.getBurst() == null ? burst : rule.getBurst());
+            result.setMaxWait(rule == null || rule.getMaxWait() == null ? maxWait : rule.getMaxWait());
+            result.setAdaptive(rule == null || rule.getAdaptive() == null ? adaptive : rule.getAdaptive());
+            result.setMinConcurrency(rule == null || rule.getMinConcurrency() == null ? minConcurrency : rule.getMinConcurrency());
+            result.setMaxConcurrency(rule == null || rule.getMaxConcurrency() == null ? maxConcurrency : rule.getMaxConcurrency());
+            result.setLatencyThreshold(rule == null || rule.getLatencyThreshold() == null ? latencyThreshold : rule.getLatencyThreshold());
+            return result;
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class RateLimitRule {
+        private Double permitsPerSecond;
+        private Integer burst;
+        private Duration maxWait;
+        private Boolean adaptive;
+        private Integer minConcurrency;
+        private Integer maxConcurrency;
+        private Duration latencyThreshold;
+
+        /**
+         * 用另一个规则里配置了的项覆盖
+         *
+         * @param other
+         */
+        void merge(RateLimitRule other) {
+            if (other.permitsPerSecond != null) {
+                permitsPerSecond = other.permitsPerSecond;
+            }
+            if (other.burst != null) {
+                burst = other.burst;
+            }
+            if (other.maxWait != null) {
+                maxWait = other.maxWait;
+            }
+            if (other.adaptive != null) {
+                adaptive = other.adaptive;
+            }
+            if (other.minConcurrency != null) {
+                minConcurrency = other.minConcurrency;
+            }
+            if (other.maxConcurrency != null) {
+                maxConcurrency = other.maxConcurrency;
+            }
+            if (other.latencyThreshold != null) {
+                latencyThreshold = other.latencyThreshold;
+            }
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class CircuitBreaker {
+        /**
+         * 是否熔断
+         */
+        private boolean enabled = true;
+        /**
+         * 统计最近多长时间内的调用
+         */
+        private Duration window = Duration.ofSeconds(10);
+        /**
+         * 统计时间内至少有这么多调用才计算失败率
+         */
+        private int minimumCalls = 10;
+        /**
+         * 失败率达到这个百分比时熔断
+         */
+        private float failureRateThreshold = 50;
+        /**
+         * 慢调用率达到这个百分比时熔断
+         */
+        private float slowCallRateThreshold = 100;
+        /**
+         * 耗时超过这个值算慢调用
+         */
+        private Duration slowCallDuration = Duration.ofSeconds(5);
+        /**
+         * 熔断后多久开始放少量调用试探
+         */
+        private Duration waitInOpen = Duration.ofSeconds(30);
+        /**
+         * 试探的调用数，都结束后按失败率决定恢复还是继续熔断
+         */
+        private int halfOpenCalls = 3;
+        /**
+         * 插件名 -> 单独的熔断配置，没有配置的项使用上面的默认值
+         */
+        private Map<String, CircuitBreakerRule> plugins = new HashMap<>();
+        /**
+         * 外部地址(host:port) -> 单独的熔断配置
+         */
+        private Map<String, CircuitBreakerRule> hosts = new HashMap<>();
+
+        CircuitBreakerRule ruleFor(CircuitBreakerRule rule) {
+            CircuitBreakerRule result = new CircuitBreakerRule();
+            result.setWindow(rule == null || rule.getWindow() == null ? window : rule.getWindow());
+            result.setMinimumCalls(rule == null || rule.getMinimumCalls() == null ? minimumCalls : rule.getMinimumCalls());
+            result.setFailureRateThreshold(rule == null || rule.getFailureRateThreshold() == null ? failureRateThreshold : rule.getFailureRateThreshold());
+            result.setSlowCallRateThreshold(rule == null || rule.getSlowCallRateThreshold() == null ? slowCallRateThreshold : rule.getSlowCallRateThreshold());
+            result.setSlowCallDuration(rule == null || rule.getSlowCallDuration() == null ? slowCallDuration : rule.getSlowCallDuration());
+            result.setWaitInOpen(rule == null || rule.getWaitInOpen() == null ? waitInOpen : rule.getWaitInOpen());
+            result.setHalfOpenCalls(rule == null || rule.getHalfOpenCalls() == null ? halfOpenCalls : rule.getHalfOpenCalls());
+            return result;
+        }
+    }
+
+    @Getter
+    @Setter
+    public static class CircuitBreakerRule {
+        private Duration window;
+        private Integer minimumCalls;
+        private Float failureRateThreshold;
+        private Float slowCallRateThreshold;
+        private Duration slowCallDuration;
+        private Duration waitInOpen;
+        private Integer halfOpenCalls;
+    }
+}
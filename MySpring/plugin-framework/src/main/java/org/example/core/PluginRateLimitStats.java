@@ -0,0 +1,25 @@
+package org.example.core;
+
+import java.time.Duration;
+
+/**
+ * @author zhy
+ * @date 2024/9/30 10:50
+ * <p>
+ * 插件的限流配置和当前状态
+ *
+ * @param pluginName
+ * @param permitsPerSecond 每秒的调用数，为0时不限制
+ * @param burst            允许的突发调用数
+ * @param maxWait          超过限流时最多排队多久
+ * @param throttled        超过限流被拒绝的调用次数
+ * @param delayed          排队等待令牌的调用次数
+ * @param adaptive         是否自动调整并发数
+ * @param concurrencyLimit 当前的并发上限
+ * @param inFlight         执行中的调用数
+ * @param concurrencyRejections 超过并发上限被拒绝的调用次数
+ */
+public record PluginRateLimitStats(String pluginName, double permitsPerSecond, int burst, Duration maxWait,
+                                   long throttled, long delayed, boolean adaptive, double concurrencyLimit,
+                                   int inFlight, long concurrencyRejections) {
+}
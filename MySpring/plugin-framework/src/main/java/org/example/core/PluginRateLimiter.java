@@ -0,0 +1,97 @@
+package org.example.core;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author zhy
+ * @date 2024/9/30 10:00
+ * <p>
+ * 插件的令牌桶限流，无锁
+ * <p>
+ * 只记录一个"理论到达时间"，每次调用用CAS把它往后推一个令牌的间隔，
+ * 和容量为burst、速率为permitsPerSecond的令牌桶等价。令牌不够时可以排队等待maxWait，超过直接拒绝
+ */
+public class PluginRateLimiter {
+    @Getter
+    private final String pluginName;
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+    private volatile Rule rule;
+    /**
+     * 超过限流被拒绝的调用次数
+     */
+    @Getter
+    private final LongAdder throttled = new LongAdder();
+    /**
+     * 排队等待令牌的调用次数
+     */
+    @Getter
+    private final LongAdder delayed = new LongAdder();
+
+    PluginRateLimiter(String pluginName, double permitsPerSecond, int burst, Duration maxWait) {
+        this.pluginName = pluginName;
+        update(permitsPerSecond, burst, maxWait);
+    }
+
+    /**
+     * 修改限流，正在排队的调用不受影响，之后的调用按新的速率重新开始计算
+     *
+     * @param permitsPerSecond 每秒的令牌数，不大于0时不限流
+     * @param burst            桶的容量，允许的突发调用数
+     * @param maxWait          最多排队等待多久，为0时令牌不够直接拒绝
+     */
+    void update(double permitsPerSecond, int burst, Duration maxWait) {
+        long interval = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+        rule = new Rule(permitsPerSecond, Math.max(1, burst), interval, (Math.max(1, burst) - 1) * interval, maxWait.toNanos());
+        // 按旧速率推到将来的到达时间不再适用
+        long now = System.nanoTime();
+        theoreticalArrival.getAndUpdate(arrival -> Math.min(arrival, now));
+    }
+
+    /**
+     * 预订一个令牌
+     *
+     * @return 需要等待的纳秒数，0表示可以立即调用，-1表示超过限流
+     */
+    long reserve() {
+        Rule rule = this.rule;
+        if (rule.interval() <= 0) {
+            return 0;
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrival.get();
+            long wait = arrival - rule.tolerance() - now;
+            if (wait > rule.maxWait()) {
+                throttled.increment();
+                return -1;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, Math.max(arrival, now) + rule.interval())) {
+                if (wait > 0) {
+                    delayed.increment();
+                    return wait;
+                }
+                return 0;
+            }
+        }
+    }
+
+    public double getPermitsPerSecond() {
+        return rule.permitsPerSecond();
+    }
+
+    public int getBurst() {
+        return rule.burst();
+    }
+
+    public Duration getMaxWait() {
+        return Duration.ofNanos(rule.maxWait());
+    }
+
+    private record Rule(double permitsPerSecond, int burst, long interval, long tolerance, long maxWait) {
+    }
+}
@@ -0,0 +1,149 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhy
+ * @date 2024/9/30 10:40
+ * <p>
+ * 插件限流，每个插件一个令牌桶和一个自适应并发数，第一次调用时创建，运行时可以修改
+ */
+@Slf4j
+@Component
+public class PluginRateLimits {
+    private final PluginProperties.RateLimit properties;
+    private final ConcurrentHashMap<String, PluginRateLimiter> rateLimiterMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AdaptiveConcurrencyLimiter> concurrencyLimiterMap = new ConcurrentHashMap<>();
+    /**
+     * 插件名称 -> 合并了默认值的限流，每次调用都要读，修改限流时失效
+     */
+    private final ConcurrentHashMap<String, PluginProperties.RateLimitRule> ruleMap = new ConcurrentHashMap<>();
+
+    public PluginRateLimits(PluginProperties pluginProperties) {
+        this.properties = pluginProperties.getRateLimit();
+    }
+
+    /**
+     * 插件的令牌桶
+     *
+     * @param pluginName
+     * @return 没有开启限流时返回null
+     */
+    PluginRateLimiter rateLimiterFor(String pluginName) {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        PluginRateLimiter limiter = rateLimiterMap.get(pluginName);
+        if (limiter != null) {
+            return limiter;
+        }
+        return rateLimiterMap.computeIfAbsent(pluginName, name -> {
+            PluginProperties.RateLimitRule rule = ruleFor(name);
+            PluginRateLimiter created = new PluginRateLimiter(name, rule.getPermitsPerSecond(), rule.getBurst(), rule.getMaxWait());
+            PluginMetrics.register(created);
+            return created;
+        });
+    }
+
+    /**
+     * 插件的自适应并发数
+     *
+     * @param pluginName
+     * @return 插件没有开启自适应并发时返回null
+     */
+    AdaptiveConcurrencyLimiter concurrencyLimiterFor(String pluginName) {
+        if (!properties.isEnabled()) {
+            return null;
+        }
+        PluginProperties.RateLimitRule rule = ruleFor(pluginName);
+        if (!rule.getAdaptive()) {
+            // 运行时关闭了自适应并发，已有的对象留给执行中的调用释放
+            return null;
+        }
+        AdaptiveConcurrencyLimiter limiter = concurrencyLimiterMap.get(pluginName);
+        if (limiter == null) {
+            limiter = concurrencyLimiterMap.computeIfAbsent(pluginName, name -> {
+                AdaptiveConcurrencyLimiter created = new AdaptiveConcurrencyLimiter(name, rule.getMinConcurrency(),
+                        rule.getMaxConcurrency(), rule.getLatencyThreshold(), properties.getBackoffRatio());
+                PluginMetrics.register(created);
+                return created;
+            });
+        }
+        return limiter;
+    }
+
+    /**
+     * 插件合并了默认值的限流，不要修改返回的对象
+     *
+     * @param pluginName
+     * @return
+     */
+    PluginProperties.RateLimitRule ruleFor(String pluginName) {
+        PluginProperties.RateLimitRule rule = ruleMap.get(pluginName);
+        if (rule != null) {
+            return rule;
+        }
+        return ruleMap.computeIfAbsent(pluginName, properties::ruleFor);
+    }
+
+    /**
+     * 修改插件的限流，只修改rule里配置了的项，立即生效
+     *
+     * @param pluginName
+     * @param rule
+     * @return 修改后的限流
+     */
+    public synchronized PluginRateLimitStats update(String pluginName, PluginProperties.RateLimitRule rule) {
+        PluginProperties.RateLimitRule current = properties.getPlugins().computeIfAbsent(pluginName, k -> new PluginProperties.RateLimitRule());
+        current.merge(rule);
+        ruleMap.remove(pluginName);
+        PluginProperties.RateLimitRule effective = ruleFor(pluginName);
+        PluginRateLimiter rateLimiter = rateLimiterMap.get(pluginName);
+        if (rateLimiter != null) {
+            rateLimiter.update(effective.getPermitsPerSecond(), effective.getBurst(), effective.getMaxWait());
+        }
+        AdaptiveConcurrencyLimiter concurrencyLimiter = concurrencyLimiterMap.get(pluginName);
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.update(effective.getMinConcurrency(), effective.getMaxConcurrency(),
+                    effective.getLatencyThreshold(), properties.getBackoffRatio());
+        }
+        log.info("修改插件 " + pluginName + " 的限流, 每秒调用数: " + effective.getPermitsPerSecond() + ", 突发数: "
+                + effective.getBurst() + ", 排队: " + effective.getMaxWait() + ", 自适应并发: " + effective.getAdaptive());
+        return stats(pluginName);
+    }
+
+    /**
+     * 所有已调用过或单独配置过的插件的限流状态
+     *
+     * @return
+     */
+    public Map<String, PluginRateLimitStats> getStats() {
+        Map<String, PluginRateLimitStats> stats = new TreeMap<>();
+        for (String pluginName : rateLimiterMap.keySet()) {
+            stats.put(pluginName, stats(pluginName));
+        }
+        for (String pluginName : properties.getPlugins().keySet()) {
+            stats.put(pluginName, stats(pluginName));
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private PluginRateLimitStats stats(String pluginName) {
+        PluginProperties.RateLimitRule rule = ruleFor(pluginName);
+        PluginRateLimiter rateLimiter = rateLimiterMap.get(pluginName);
+        AdaptiveConcurrencyLimiter concurrencyLimiter = concurrencyLimiterMap.get(pluginName);
+        return new PluginRateLimitStats(pluginName, rule.getPermitsPerSecond(), rule.getBurst(), rule.getMaxWait(),
+                rateLimiter == null ? 0 : rateLimiter.getThrottled().sum(),
+                rateLimiter == null ? 0 : rateLimiter.getDelayed().sum(),
+                rule.getAdaptive(),
+                concurrencyLimiter == null ? rule.getMaxConcurrency() : concurrencyLimiter.getLimit(),
+                concurrencyLimiter == null ? 0 : concurrencyLimiter.getInFlight(),
+                concurrencyLimiter == null ? 0 : concurrencyLimiter.getRejections().sum());
+    }
+}
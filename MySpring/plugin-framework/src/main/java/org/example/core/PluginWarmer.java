@@ -0,0 +1,18 @@
+package org.example.core;
+
+/**
+ * @author zhy
+ * @date 2024/9/23 15:10
+ * <p>
+ * 插件预热，由主程序实现，启动时插件加载完后调用，比如用测试数据调用一次插件的接口，
+ * 让类加载、bean初始化、JIT编译都发生在接收请求之前
+ */
+public interface PluginWarmer {
+    /**
+     * 预热插件，调用期间插件不会被卸载
+     *
+     * @param plugin
+     * @throws Exception 预热失败不影响插件使用
+     */
+    void warmUp(Plugin plugin) throws Exception;
+}
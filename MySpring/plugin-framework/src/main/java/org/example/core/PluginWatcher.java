@@ -0,0 +1,172 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author zhy
+ * @date 2024/9/10 10:12
+ * <p>
+ * 插件目录监听器
+ * <p>
+ * 每个插件目录对应一个变更计数器，目录里的文件有创建、修改、删除时计数器加1，
+ * 插件只需要比较自己加载时记录的计数值就能知道jar是否可能有更新，不用每次都去读文件算md5
+ * <p>
+ * 计数器变化只说明jar可能有更新，复制jar的过程中也会变化；jar写完之前不会切换版本，见PluginFileSettler。
+ * 发布插件时最好先写到插件目录外(或非.jar后缀的临时文件)，再rename成jar；
+ * 直接覆盖正在使用的jar时，旧版本还没加载过的类也会从写了一半的jar里读
+ */
+@Slf4j
+class PluginWatcher {
+    private final ConcurrentHashMap<String, AtomicLong> counterMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<WatchKey, String> keyMap = new ConcurrentHashMap<>();
+    private final Set<Path> watchedPaths = ConcurrentHashMap.newKeySet();
+    private WatchService watchService;
+
+    /**
+     * 启动监听线程，监听失败时返回false，此时插件每次都要检查文件状态
+     *
+     * @return
+     */
+    synchronized boolean start() {
+        if (watchService != null) {
+            return true;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("插件目录监听启动失败: " + e.getMessage());
+            return false;
+        }
+        Thread thread = new Thread(this::run, "plugin-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * 监听插件根目录，用来感知插件目录的新建和删除
+     *
+     * @param rootPath
+     * @return
+     */
+    synchronized boolean watchRoot(Path rootPath) {
+        if (!start()) {
+            return false;
+        }
+        if (watchedPaths.contains(rootPath)) {
+            return true;
+        }
+        try {
+            Files.createDirectories(rootPath);
+            rootPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedPaths.add(rootPath);
+            return true;
+        } catch (IOException e) {
+            log.warn("监听插件根目录失败: " + rootPath + ", " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 插件的变更计数器，只在watch之后才有，不会为不存在的插件创建
+     *
+     * @param pluginName
+     * @return 还没有监听或监听不可用时返回null
+     */
+    AtomicLong counter(String pluginName) {
+        return counterMap.get(pluginName);
+    }
+
+    /**
+     * 插件目录已经不存在，移除计数器；移除前加1，持有它的插件和快照都会重新检查
+     *
+     * @param pluginName
+     */
+    void unwatch(String pluginName) {
+        AtomicLong counter = counterMap.remove(pluginName);
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * 监听插件目录，返回该插件的变更计数器，找到插件目录之后才调用
+     *
+     * @param pluginName
+     * @param directories 插件目录以及插件的依赖目录，不存在的目录忽略
+     * @return 监听不可用时返回null
+     */
+    AtomicLong watch(String pluginName, Path... directories) {
+        if (!start()) {
+            return null;
+        }
+        AtomicLong counter = counterMap.computeIfAbsent(pluginName, k -> new AtomicLong());
+        for (Path directory : directories) {
+            if (watchedPaths.contains(directory) || !Files.isDirectory(directory)) {
+                continue;
+            }
+            synchronized (this) {
+                if (watchedPaths.contains(directory)) {
+                    continue;
+                }
+                try {
+                    WatchKey watchKey = directory.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                    keyMap.put(watchKey, pluginName);
+                    watchedPaths.add(directory);
+                } catch (IOException e) {
+                    log.warn("监听插件目录失败: " + directory + ", " + e.getMessage());
+                    return null;
+                }
+            }
+        }
+        return counter;
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            String pluginName = keyMap.get(watchKey);
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // 事件丢失，所有插件都需要重新检查
+                    counterMap.values().forEach(AtomicLong::incrementAndGet);
+                    continue;
+                }
+                if (pluginName != null) {
+                    changed(pluginName);
+                } else if (event.context() instanceof Path path) {
+                    // 根目录事件，context是插件目录名，哪个根目录都一样，插件要重新查找所在的根目录
+                    changed(path.getFileName().toString());
+                }
+            }
+            if (!watchKey.reset() && pluginName != null) {
+                // 插件目录被删除，下次加载时重新注册监听
+                keyMap.remove(watchKey);
+                watchedPaths.remove((Path) watchKey.watchable());
+                changed(pluginName);
+            }
+        }
+    }
+
+    private void changed(String pluginName) {
+        AtomicLong counter = counterMap.get(pluginName);
+        if (counter != null) {
+            counter.incrementAndGet();
+            log.debug("插件目录有变更: " + pluginName);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.example.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * @author zhy
+ * @date 2024/9/20 15:10
+ * <p>
+ * 插件共享的第三方库
+ * <p>
+ * 插件lib目录里的jar按md5登记，每个共享的jar一个SharedLibraryClassLoader，内容相同并且依赖的jar也相同的只定义一次类。
+ * 插件只能看到自己登记的jar，没有带某个库的插件不会用到其他插件共享的库，
+ * 共享jar的依赖也是登记它的插件自己的版本，不会和其他插件的版本混用。
+ * 以下情况jar不共享，由插件自己加载:
+ * <ul>
+ *     <li>同一个插件的lib里有多个jar包含相同的包(同一个库的不同版本)</li>
+ *     <li>依赖了不共享的jar，共享的jar看不到插件自己加载的类</li>
+ * </ul>
+ * 登记过的jar复制到共享目录，插件目录里的jar被替换或删除也不影响已加载的类。
+ * 共享库只登记不注销，插件卸载后它用过的共享jar和类仍然保留到进程退出
+ */
+@Slf4j
+class SharedLibraries {
+    private final Path libraryPath;
+    private final ClassLoader parent;
+    /**
+     * md5 -> jar里的包和引用的包
+     */
+    private final Map<String, LibraryInfo> infoMap = new HashMap<>();
+    /**
+     * jar和它所有间接依赖的md5 -> 共享的classLoader
+     */
+    private final Map<String, SharedLibraryClassLoader> loaderMap = new HashMap<>();
+    /**
+     * md5 -> 使用过这个jar的插件
+     */
+    private final Map<String, Set<String>> libraryMap = new HashMap<>();
+
+    private static volatile SharedLibraries instance;
+
+    /**
+     * 设置共享库目录，和扫描结果缓存放在一起，见PluginManager.configure；
+     * 目录变化时换成新的实例，已加载的插件继续使用原来的共享库
+     *
+     * @param libraryPath
+     */
+    static synchronized void configure(Path libraryPath) {
+        if (instance == null || !instance.libraryPath.equals(libraryPath)) {
+            instance = new SharedLibraries(libraryPath, PluginClassLoader.findParentClassLoader());
+        }
+    }
+
+    /**
+     * 没有设置目录时使用运行目录下的plugins-lib
+     *
+     * @return
+     */
+    static SharedLibraries getInstance() {
+        if (instance == null) {
+            configure(Paths.get(System.getProperty("user.dir"), "plugins-lib"));
+        }
+        return instance;
+    }
+
+    SharedLibraries(Path libraryPath, ClassLoader parent) {
+        this.libraryPath = libraryPath;
+        this.parent = parent;
+    }
+
+    /**
+     * 登记插件的依赖jar
+     *
+     * @param pluginName
+     * @param libraries  依赖jar和md5
+     * @return 共享的jar和它的classLoader，不在里面的由插件自己加载
+     */
+    synchronized Map<File, SharedLibraryClassLoader> share(String pluginName, Map<File, String> libraries) {
+        Map<File, LibraryInfo> infos = new LinkedHashMap<>();
+        Set<File> privateFiles = new HashSet<>();
+        for (Map.Entry<File, String> library : libraries.entrySet()) {
+            File file = library.getKey();
+            String md5 = library.getValue();
+            try {
+                LibraryInfo info = infoMap.get(md5);
+                if (info == null) {
+                    info = LibraryInfo.read(file);
+                    infoMap.put(md5, info);
+                }
+                infos.put(file, info);
+            } catch (IOException e) {
+                log.warn("共享依赖失败, 由插件单独加载: " + file.getName() + ", " + e.getMessage());
+                privateFiles.add(file);
+            }
+        }
+        // 包名 -> 插件里提供这个包的jar，多个jar有相同的包时都不共享
+        Map<String, File> owners = new HashMap<>();
+        for (Map.Entry<File, LibraryInfo> entry : infos.entrySet()) {
+            for (String packageName : entry.getValue().packages()) {
+                File owner = owners.putIfAbsent(packageName, entry.getKey());
+                if (owner != null && !owner.equals(entry.getKey())) {
+                    log.info("插件的依赖有相同的包, 由插件单独加载: " + pluginName + ", " + owner.getName() + ", "
+                            + entry.getKey().getName() + ", " + packageName);
+                    privateFiles.add(owner);
+                    privateFiles.add(entry.getKey());
+                }
+            }
+        }
+        Map<File, Set<File>> dependencyMap = new HashMap<>();
+        infos.forEach((file, info) -> {
+            Set<File> dependencies = new LinkedHashSet<>();
+            for (String packageName : info.references()) {
+                File owner = owners.get(packageName);
+                if (owner != null && !owner.equals(file)) {
+                    dependencies.add(owner);
+                }
+            }
+            dependencyMap.put(file, dependencies);
+        });
+        // 复制失败的jar不共享，依赖它的jar要重新判断
+        Map<File, Path> copied = new HashMap<>();
+        boolean failed = true;
+        while (failed) {
+            markDependents(pluginName, infos.keySet(), dependencyMap, privateFiles);
+            failed = false;
+            for (File file : infos.keySet()) {
+                if (privateFiles.contains(file) || copied.containsKey(file) || loaderMap.containsKey(key(file, libraries, dependencyMap))) {
+                    continue;
+                }
+                try {
+                    copied.put(file, copy(file, libraries.get(file)));
+                } catch (IOException e) {
+                    log.warn("共享依赖失败, 由插件单独加载: " + file.getName() + ", " + e.getMessage());
+                    privateFiles.add(file);
+                    failed = true;
+                }
+            }
+        }
+        Map<File, SharedLibraryClassLoader> shared = new LinkedHashMap<>();
+        List<File> created = new ArrayList<>();
+        for (File file : infos.keySet()) {
+            if (privateFiles.contains(file)) {
+                continue;
+            }
+            String key = key(file, libraries, dependencyMap);
+            SharedLibraryClassLoader loader = loaderMap.get(key);
+            if (loader == null) {
+                loader = create(file, copied.get(file), infos.get(file));
+                loaderMap.put(key, loader);
+                created.add(file);
+            }
+            shared.put(file, loader);
+        }
+        // 新建的classLoader连上依赖，已有的classLoader依赖的md5相同，不需要再连
+        for (File file : created) {
+            SharedLibraryClassLoader loader = shared.get(file);
+            for (File dependency : dependencyMap.get(file)) {
+                loader.addDependency(shared.get(dependency));
+            }
+        }
+        for (File file : shared.keySet()) {
+            libraryMap.computeIfAbsent(libraries.get(file), k -> new TreeSet<>()).add(pluginName);
+        }
+        return shared;
+    }
+
+    /**
+     * 删除没有插件再用到的共享jar，本进程登记过的和清理开始后写入的不删除
+     *
+     * @param md5s   插件目录里现有依赖jar的md5
+     * @param before 只删除在这之前写入的jar
+     */
+    synchronized void prune(Set<String> md5s, long before) {
+        File[] files = libraryPath.toFile().listFiles((dir, name) -> name.endsWith(".jar") || name.endsWith(".tmp"));
+        if (files == null) {
+            return;
+        }
+        int pruned = 0;
+        for (File file : files) {
+            String name = file.getName();
+            String md5 = name.endsWith(".jar") ? name.substring(0, name.length() - ".jar".length()) : null;
+            if ((md5 != null && (md5s.contains(md5) || libraryMap.containsKey(md5))) || file.lastModified() >= before) {
+                continue;
+            }
+            if (file.delete()) {
+                pruned++;
+            }
+        }
+        if (pruned > 0) {
+            log.info("清理不再使用的共享依赖: " + libraryPath + ", 数量: " + pruned);
+        }
+    }
+
+    /**
+     * 共享的jar和使用它的插件
+     *
+     * @return
+     */
+    synchronized Map<String, Set<String>> getLibraries() {
+        Map<String, Set<String>> libraries = new TreeMap<>();
+        libraryMap.forEach((md5, plugins) -> libraries.put(md5, new TreeSet<>(plugins)));
+        return libraries;
+    }
+
+    /**
+     * jar自己和所有间接依赖的md5，依赖的版本不同时是不同的classLoader
+     */
+    private static String key(File file, Map<File, String> libraries, Map<File, Set<File>> dependencyMap) {
+        Set<File> visited = new HashSet<>();
+        Deque<File> stack = new ArrayDeque<>(dependencyMap.get(file));
+        Set<String> md5s = new TreeSet<>();
+        while (!stack.isEmpty()) {
+            File dependency = stack.pop();
+            if (visited.add(dependency)) {
+                md5s.add(libraries.get(dependency));
+                stack.addAll(dependencyMap.get(dependency));
+            }
+        }
+        md5s.remove(libraries.get(file));
+        return libraries.get(file) + md5s;
+    }
+
+    /**
+     * 依赖了不共享的jar也不共享，直到没有变化
+     */
+    private static void markDependents(String pluginName, Set<File> files, Map<File, Set<File>> dependencyMap, Set<File> privateFiles) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (File file : files) {
+                if (!privateFiles.contains(file) && dependencyMap.get(file).stream().anyMatch(privateFiles::contains)) {
+                    log.info("依赖了插件单独加载的jar, 由插件单独加载: " + pluginName + ", " + file.getName());
+                    privateFiles.add(file);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * 复制到共享目录
+     *
+     * @return 共享目录里的jar
+     */
+    private Path copy(File file, String md5) throws IOException {
+        Files.createDirectories(libraryPath);
+        Path target = libraryPath.resolve(md5 + ".jar");
+        if (!Files.exists(target)) {
+            Path temp = Files.createTempFile(libraryPath, md5, ".tmp");
+            Files.copy(file.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return target;
+    }
+
+    private SharedLibraryClassLoader create(File file, Path jar, LibraryInfo info) {
+        try {
+            log.info("共享依赖: " + file.getName() + ", " + jar.getFileName());
+            return new SharedLibraryClassLoader("plugin-shared-" + file.getName(), jar.toUri().toURL(), info.packages(), parent);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 依赖jar里的包和它引用的其他包
+     */
+    private record LibraryInfo(Set<String> packages, Set<String> references) {
+
+        static LibraryInfo read(File file) throws IOException {
+            Set<String> packages = new HashSet<>();
+            Set<String> references = new HashSet<>();
+            try (JarFile jarFile = new JarFile(file)) {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    int index = name.lastIndexOf('/');
+                    // module-info、多版本jar的META-INF/versions不算包
+                    if (!name.endsWith(".class") || index <= 0 || name.startsWith("META-INF/")) {
+                        continue;
+                    }
+                    packages.add(name.substring(0, index).replace('/', '.'));
+                    try (InputStream in = jarFile.getInputStream(entry)) {
+                        references.addAll(ClassMetadata.referencedPackages(in.readAllBytes()));
+                    }
+                }
+            }
+            references.removeAll(packages);
+            return new LibraryInfo(packages, references);
+        }
+    }
+}
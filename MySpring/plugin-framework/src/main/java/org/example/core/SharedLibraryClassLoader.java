@@ -0,0 +1,65 @@
+package org.example.core;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author zhy
+ * @date 2024/9/20 15:10
+ * <p>
+ * 一个共享的依赖jar
+ * <p>
+ * 先从主程序加载，再从自己的jar加载，都找不到时按包名交给它依赖的共享jar；
+ * 依赖在创建时就确定了，不会链接到其他插件登记的同名jar，见SharedLibraries
+ */
+class SharedLibraryClassLoader extends URLClassLoader {
+    /**
+     * jar里的包
+     */
+    private final Set<String> packages;
+    /**
+     * 包名 -> 提供这个包的共享jar
+     */
+    private final Map<String, SharedLibraryClassLoader> dependencies = new ConcurrentHashMap<>();
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    SharedLibraryClassLoader(String name, URL url, Set<String> packages, ClassLoader parent) {
+        super(name, new URL[]{url}, parent);
+        this.packages = Set.copyOf(packages);
+    }
+
+    Set<String> getPackageNames() {
+        return packages;
+    }
+
+    /**
+     * 添加依赖的共享jar
+     *
+     * @param dependency
+     */
+    void addDependency(SharedLibraryClassLoader dependency) {
+        for (String packageName : dependency.getPackageNames()) {
+            dependencies.putIfAbsent(packageName, dependency);
+        }
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        try {
+            return super.loadClass(name, resolve);
+        } catch (ClassNotFoundException e) {
+            int index = name.lastIndexOf('.');
+            SharedLibraryClassLoader dependency = index > 0 ? dependencies.get(name.substring(0, index)) : null;
+            if (dependency == null) {
+                throw e;
+            }
+            return dependency.loadClass(name);
+        }
+    }
+}
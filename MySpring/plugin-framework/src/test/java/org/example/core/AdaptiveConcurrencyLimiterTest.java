@@ -0,0 +1,101 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class AdaptiveConcurrencyLimiterTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static AdaptiveConcurrencyLimiter limiter() {
+        return new AdaptiveConcurrencyLimiter("test", 2, 10, Duration.ofMillis(100), 0.5);
+    }
+
+    @Test
+    void startsAtMaxLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(10, limiter.getInFlight());
+        assertEquals(1, limiter.getRejections().sum());
+    }
+
+    @Test
+    void failureHalvesLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        assertTrue(limiter.tryAcquire());
+        limiter.release(FAST, false);
+        assertEquals(5, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void slowCallHalvesLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        assertTrue(limiter.tryAcquire());
+        limiter.release(SLOW, true);
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    void backoffStopsAtMinLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, false);
+        }
+        assertEquals(2, limiter.getLimit());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    void successIncreasesByOnePerRound() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        assertTrue(limiter.tryAcquire());
+        limiter.release(FAST, false);
+        assertEquals(5, limiter.getLimit());
+        // 每个成功的调用加1/limit，一轮limit个调用大约加1
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, true);
+        }
+        assertEquals(6, limiter.getLimit(), 0.2);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, true);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void cancelOnlyReleasesSlot() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        assertTrue(limiter.tryAcquire());
+        limiter.cancel();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void updateClampsCurrentLimit() {
+        AdaptiveConcurrencyLimiter limiter = limiter();
+        limiter.update(1, 3, Duration.ofMillis(100), 0.5);
+        assertEquals(3, limiter.getLimit());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+    }
+}
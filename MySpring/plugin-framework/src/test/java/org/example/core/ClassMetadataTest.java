@@ -0,0 +1,131 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class ClassMetadataTest {
+
+    /**
+     * 常量池里有Long、Double、String和方法引用，注解带枚举、数组和嵌套的元素值
+     */
+    @RestController
+    @RequestMapping(value = {"/a", "/b"}, method = RequestMethod.POST)
+    static class Controller extends Base implements Runnable, Serializable {
+        static final long LONG = 1234567890123L;
+        static final double DOUBLE = 3.14;
+        private long count = System.nanoTime();
+        private double ratio = Math.random();
+        private String text = "常量" + count;
+
+        @Override
+        public void run() {
+            Runnable nested = () -> count += LONG;
+            nested.run();
+            ratio *= DOUBLE;
+        }
+    }
+
+    static class Base {
+    }
+
+    @Service
+    @Component
+    static class ServiceAndComponent {
+    }
+
+    @Service
+    abstract static class AbstractService {
+    }
+
+    @Component
+    interface ComponentInterface {
+    }
+
+    private static ClassMetadata read(Class<?> clazz) throws IOException {
+        String name = clazz.getName();
+        try (InputStream in = clazz.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            return ClassMetadata.read(in.readAllBytes());
+        }
+    }
+
+    @Test
+    void readsNamesAndAnnotation() throws IOException {
+        ClassMetadata metadata = read(Controller.class);
+        assertEquals(Controller.class.getName(), metadata.className());
+        assertEquals(Base.class.getName(), metadata.superName());
+        assertArrayEquals(new String[]{Runnable.class.getName(), Serializable.class.getName()}, metadata.interfaces());
+        assertEquals(ANNOTATION_ENUM.REST_CONTROLLER, metadata.annotation());
+        assertFalse(metadata.isAbstract());
+    }
+
+    @Test
+    void sameAsDefinedClass() throws IOException {
+        for (Class<?> clazz : new Class<?>[]{Controller.class, Base.class, ServiceAndComponent.class}) {
+            ClassMetadata read = read(clazz);
+            ClassMetadata defined = ClassMetadata.of(clazz, read.annotation());
+            assertEquals(defined.className(), read.className());
+            assertEquals(defined.superName(), read.superName());
+            assertTrue(Arrays.equals(defined.interfaces(), read.interfaces()));
+            assertEquals(defined.isAbstract(), read.isAbstract());
+        }
+    }
+
+    @Test
+    void firstAnnotationInEnumOrderWins() throws IOException {
+        assertEquals(ANNOTATION_ENUM.COMPONENT, read(ServiceAndComponent.class).annotation());
+        assertEquals(ANNOTATION_ENUM.OTHER, read(Base.class).annotation());
+    }
+
+    @Test
+    void abstractTypesAreNotBeans() throws IOException {
+        ClassMetadata abstractService = read(AbstractService.class);
+        assertTrue(abstractService.isAbstract());
+        assertEquals(ANNOTATION_ENUM.OTHER, abstractService.annotation());
+
+        ClassMetadata componentInterface = read(ComponentInterface.class);
+        assertTrue(componentInterface.isAbstract());
+        assertEquals(Object.class.getName(), componentInterface.superName());
+        assertEquals(ANNOTATION_ENUM.OTHER, componentInterface.annotation());
+    }
+
+    @Test
+    void referencedPackages() throws IOException {
+        byte[] bytes;
+        try (InputStream in = Controller.class.getResourceAsStream("ClassMetadataTest$Controller.class")) {
+            bytes = in.readAllBytes();
+        }
+        Set<String> packages = ClassMetadata.referencedPackages(bytes);
+        // 父类、接口、注解、注解里的枚举、字段和方法描述符里的类型
+        assertTrue(packages.containsAll(Set.of("org.example.core", "java.lang", "java.io",
+                "org.springframework.web.bind.annotation")));
+        assertFalse(packages.contains(""));
+    }
+
+    @Test
+    void rejectsInvalidBytes() throws IOException {
+        assertThrows(IOException.class, () -> ClassMetadata.read(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+        byte[] bytes;
+        try (InputStream in = Controller.class.getResourceAsStream("ClassMetadataTest$Controller.class")) {
+            bytes = in.readAllBytes();
+        }
+        // 截断的class文件
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+        assertThrows(IOException.class, () -> ClassMetadata.read(truncated));
+    }
+}
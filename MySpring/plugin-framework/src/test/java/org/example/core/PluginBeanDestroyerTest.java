@@ -0,0 +1,129 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginBeanDestroyerTest {
+    private final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+    private void register(String name) {
+        register(name, 0);
+    }
+
+    private void register(String name, long sleepMillis) {
+        Object bean = new Object();
+        beanFactory.registerSingleton(name, bean);
+        beanFactory.registerDisposableBean(name, () -> {
+            if (sleepMillis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            order.add(name);
+        });
+    }
+
+    /**
+     * dependent依赖bean
+     */
+    private void dependsOn(String dependent, String bean) {
+        beanFactory.registerDependentBean(bean, dependent);
+    }
+
+    private PluginBeanDestroyer.DestroyReport destroy(Duration timeout) {
+        return PluginBeanDestroyer.destroy(beanFactory, "test", timeout);
+    }
+
+    @Test
+    void destroysDependentsFirst() {
+        register("repository");
+        register("service");
+        register("controller");
+        register("client");
+        dependsOn("controller", "service");
+        dependsOn("service", "repository");
+        dependsOn("service", "client");
+
+        PluginBeanDestroyer.DestroyReport report = destroy(Duration.ofSeconds(5));
+
+        assertEquals(4, report.destroyed());
+        assertTrue(report.leftover().isEmpty());
+        assertTrue(report.cycles().isEmpty());
+        assertFalse(report.timedOut());
+        assertEquals(4, order.size());
+        assertTrue(order.indexOf("controller") < order.indexOf("service"));
+        assertTrue(order.indexOf("service") < order.indexOf("repository"));
+        assertTrue(order.indexOf("service") < order.indexOf("client"));
+        assertEquals(0, beanFactory.getSingletonCount());
+    }
+
+    @Test
+    void independentGroupsDoNotWaitForEachOther() {
+        register("slow", 300);
+        register("fast");
+        register("fastDependency");
+        dependsOn("fast", "fastDependency");
+
+        PluginBeanDestroyer.DestroyReport report = destroy(Duration.ofSeconds(5));
+
+        assertEquals(3, report.destroyed());
+        // 两组并行销毁，慢的那组最后结束
+        assertEquals(List.of("fast", "fastDependency", "slow"), order);
+    }
+
+    @Test
+    void cyclesFallBackToSpring() {
+        register("a");
+        register("b");
+        register("c");
+        register("outside");
+        dependsOn("a", "b");
+        dependsOn("b", "a");
+        dependsOn("c", "a");
+        dependsOn("outside", "c");
+
+        PluginBeanDestroyer.DestroyReport report = destroy(Duration.ofSeconds(5));
+
+        assertEquals(4, report.destroyed());
+        assertTrue(report.leftover().isEmpty());
+        assertTrue(report.cycles().containsAll(List.of("a", "b")));
+        assertFalse(report.cycles().contains("outside"));
+        // 不在循环里的仍然按依赖关系先销毁
+        assertEquals("outside", order.get(0));
+        assertEquals(4, order.size());
+        assertEquals(0, beanFactory.getSingletonCount());
+    }
+
+    @Test
+    void reportsLeftoverOnTimeout() {
+        register("slow", 5000);
+        register("slowDependency");
+        dependsOn("slow", "slowDependency");
+        register("other");
+
+        PluginBeanDestroyer.DestroyReport report = destroy(Duration.ofMillis(200));
+
+        assertTrue(report.timedOut());
+        assertTrue(report.leftover().contains("slowDependency"));
+        assertFalse(report.leftover().contains("other"));
+        assertTrue(report.millis() < 5000);
+        // 中断后等销毁线程停下来才返回，之后Spring销毁剩下的bean时不会和它同时进行
+        assertTrue(order.contains("slow"));
+        assertFalse(order.contains("slowDependency"));
+    }
+}
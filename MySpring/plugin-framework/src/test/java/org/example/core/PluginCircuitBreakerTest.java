@@ -0,0 +1,178 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginCircuitBreakerTest {
+    private static final Duration WAIT_IN_OPEN = Duration.ofMillis(50);
+
+    private static PluginCircuitBreaker circuitBreaker(int halfOpenCalls) {
+        PluginProperties.CircuitBreaker properties = new PluginProperties.CircuitBreaker();
+        properties.setMinimumCalls(4);
+        properties.setWaitInOpen(WAIT_IN_OPEN);
+        properties.setHalfOpenCalls(halfOpenCalls);
+        properties.setSlowCallDuration(Duration.ofSeconds(1));
+        return new PluginCircuitBreaker("test", properties.ruleFor(null));
+    }
+
+    private static void open(PluginCircuitBreaker circuitBreaker) {
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.tryAcquire().onComplete(1, new IllegalStateException("失败"), false);
+        }
+        assertEquals(PluginCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    void opensWhenFailureRateExceeded() {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        open(circuitBreaker);
+        assertNull(circuitBreaker.tryAcquire());
+        assertEquals(1, circuitBreaker.getNotPermitted().sum());
+        assertEquals(1, circuitBreaker.getOpened().sum());
+    }
+
+    @Test
+    void falseResultCountsAsFailure() {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.tryAcquire().onComplete(1, null, true);
+        }
+        assertEquals(PluginCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    void staysClosedBelowMinimumCalls() {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.tryAcquire().onComplete(1, new IllegalStateException("失败"), false);
+        }
+        assertEquals(PluginCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    void rejectedAndCancelledCallsAreNotCounted() {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        for (int i = 0; i < 10; i++) {
+            circuitBreaker.tryAcquire().onComplete(1, i % 2 == 0 ? new RejectedExecutionException("舱壁已满") : new CancellationException(), false);
+        }
+        assertEquals(PluginCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(0, circuitBreaker.getStats().calls());
+    }
+
+    @Test
+    void halfOpenOverSubscriptionDoesNotLosePermits() throws Exception {
+        int halfOpenCalls = 3;
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(halfOpenCalls);
+        open(circuitBreaker);
+        TimeUnit.MILLISECONDS.sleep(WAIT_IN_OPEN.toMillis() + 20);
+
+        // 大量调用同时进来，只有halfOpenCalls个拿到试探名额
+        int callers = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<PluginCircuitBreaker.Permit>> futures = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return circuitBreaker.tryAcquire();
+            }));
+        }
+        start.countDown();
+        List<PluginCircuitBreaker.Permit> permits = new ArrayList<>();
+        for (Future<PluginCircuitBreaker.Permit> future : futures) {
+            PluginCircuitBreaker.Permit permit = future.get(5, TimeUnit.SECONDS);
+            if (permit != null) {
+                permits.add(permit);
+            }
+        }
+        executor.shutdown();
+        assertEquals(halfOpenCalls, permits.size());
+        assertEquals(PluginCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        // 再来的调用仍然被拒绝，不影响名额
+        for (int i = 0; i < 10; i++) {
+            assertNull(circuitBreaker.tryAcquire());
+        }
+        // 一个试探被取消，归还一个名额
+        permits.remove(0).onComplete(1, new CancellationException(), false);
+        PluginCircuitBreaker.Permit retry = circuitBreaker.tryAcquire();
+        assertNotNull(retry);
+        assertNull(circuitBreaker.tryAcquire());
+
+        permits.add(retry);
+        permits.forEach(permit -> permit.onComplete(1, null, false));
+        assertEquals(PluginCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertNotNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void failedProbesReopen() throws Exception {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        open(circuitBreaker);
+        TimeUnit.MILLISECONDS.sleep(WAIT_IN_OPEN.toMillis() + 20);
+        PluginCircuitBreaker.Permit first = circuitBreaker.tryAcquire();
+        PluginCircuitBreaker.Permit second = circuitBreaker.tryAcquire();
+        first.onComplete(1, new IllegalStateException("失败"), false);
+        second.onComplete(1, new IllegalStateException("失败"), false);
+        assertEquals(PluginCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getOpened().sum());
+        assertNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void releaseDoesNotExceedHalfOpenCalls() throws Exception {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        open(circuitBreaker);
+        TimeUnit.MILLISECONDS.sleep(WAIT_IN_OPEN.toMillis() + 20);
+        PluginCircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertNotNull(probe);
+        // 重复归还不能多放出试探
+        probe.release();
+        probe.release();
+        probe.release();
+        assertNotNull(circuitBreaker.tryAcquire());
+        assertNotNull(circuitBreaker.tryAcquire());
+        assertNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    void callsAcquiredBeforeHalfOpenAreNotProbes() throws Exception {
+        PluginCircuitBreaker circuitBreaker = circuitBreaker(2);
+        // 熔断前发出、试探期间才结束的调用
+        List<PluginCircuitBreaker.Permit> inFlight = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            inFlight.add(circuitBreaker.tryAcquire());
+        }
+        open(circuitBreaker);
+        TimeUnit.MILLISECONDS.sleep(WAIT_IN_OPEN.toMillis() + 20);
+        PluginCircuitBreaker.Permit probe = circuitBreaker.tryAcquire();
+        assertNotNull(probe);
+
+        // 结果不计入试探，取消也不归还试探名额
+        inFlight.get(0).onComplete(1, null, false);
+        inFlight.get(1).onComplete(1, null, false);
+        inFlight.get(2).onComplete(1, new CancellationException(), false);
+        assertEquals(PluginCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertNotNull(circuitBreaker.tryAcquire());
+        assertNull(circuitBreaker.tryAcquire());
+
+        probe.onComplete(1, new IllegalStateException("失败"), false);
+        assertEquals(PluginCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    }
+}
@@ -0,0 +1,56 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginDirectoryIndexTest {
+    @TempDir
+    Path root;
+
+    @Test
+    void unknownPluginsDoNotGetCounters() {
+        PluginWatcher watcher = new PluginWatcher();
+        PluginDirectoryIndex index = new PluginDirectoryIndex(List.of(root), watcher);
+
+        for (int i = 0; i < 100; i++) {
+            assertNull(index.find("missing-" + i));
+            assertNull(watcher.counter("missing-" + i));
+        }
+    }
+
+    @Test
+    void counterCreatedOnceFoundAndRemovedWhenDeleted() throws IOException {
+        Path pluginPath = Files.createDirectories(root.resolve("a"));
+        Files.createFile(pluginPath.resolve("a.jar"));
+        PluginWatcher watcher = new PluginWatcher();
+        PluginDirectoryIndex index = new PluginDirectoryIndex(List.of(root), watcher);
+
+        PluginDirectory directory = index.find("a");
+        assertNotNull(directory);
+        assertEquals(1, directory.jars().size());
+        AtomicLong counter = watcher.counter("a");
+        assertNotNull(counter);
+        assertSame(counter, directory.changeCounter());
+
+        Files.delete(pluginPath.resolve("a.jar"));
+        Files.delete(pluginPath);
+        // 不等监听事件，快照失效后重新读取
+        counter.incrementAndGet();
+        assertNull(index.find("a"));
+        assertNull(watcher.counter("a"));
+        // 移除时加1(监听线程也可能加)，持有旧计数器的插件会重新检查
+        assertTrue(counter.get() >= 2);
+    }
+}
@@ -0,0 +1,75 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginFileSettlerTest {
+    private static final Duration QUIET = Duration.ofMillis(100);
+
+    private static List<PluginFileState> states(long lastModified, long size) {
+        return List.of(new PluginFileState("/plugins/a/a.jar", lastModified, size, null));
+    }
+
+    @Test
+    void oldFilesAreSettled() {
+        PluginFileSettler settler = new PluginFileSettler(QUIET);
+        assertTrue(settler.isSettled("a", states(System.currentTimeMillis() - 1000, 10)));
+    }
+
+    @Test
+    void zeroQuietPeriodNeverWaits() {
+        PluginFileSettler settler = new PluginFileSettler(Duration.ZERO);
+        assertTrue(settler.isSettled("a", states(System.currentTimeMillis(), 10)));
+    }
+
+    @Test
+    void recentFilesSettleWhenUnchangedForQuietPeriod() throws InterruptedException {
+        PluginFileSettler settler = new PluginFileSettler(QUIET);
+        // 修改时间在未来(时钟不一致)也能靠状态不变判断
+        List<PluginFileState> states = states(System.currentTimeMillis() + 60_000, 10);
+        assertFalse(settler.isSettled("a", states));
+        assertFalse(settler.isSettled("a", states));
+        Thread.sleep(QUIET.toMillis());
+        assertTrue(settler.isSettled("a", states));
+    }
+
+    @Test
+    void growingFileRestartsQuietPeriod() throws InterruptedException {
+        PluginFileSettler settler = new PluginFileSettler(QUIET);
+        long now = System.currentTimeMillis() + 60_000;
+        assertFalse(settler.isSettled("a", states(now, 10)));
+        Thread.sleep(QUIET.toMillis());
+        assertFalse(settler.isSettled("a", states(now, 20)));
+        // 其他插件互不影响
+        assertTrue(settler.isSettled("b", states(now - 120_000, 10)));
+    }
+
+    @Test
+    void awaitSettledWaitsForCopyToFinish() throws Exception {
+        PluginFileSettler settler = new PluginFileSettler(QUIET);
+        long now = System.currentTimeMillis() + 60_000;
+        AtomicInteger stats = new AtomicInteger();
+        // 前两次读到的大小还在增长
+        List<PluginFileState> settled = settler.awaitSettled("a", states(now, 0),
+                () -> states(now, Math.min(stats.incrementAndGet(), 3) * 10L));
+        assertEquals(states(now, 30), settled);
+        assertTrue(stats.get() >= 4);
+    }
+
+    @Test
+    void awaitSettledGivesUp() throws Exception {
+        PluginFileSettler settler = new PluginFileSettler(Duration.ofMillis(10));
+        long now = System.currentTimeMillis() + 60_000;
+        AtomicInteger size = new AtomicInteger();
+        assertNull(settler.awaitSettled("a", states(now, 0), () -> states(now, size.incrementAndGet())));
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginIndexCacheTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void pruneRemovesUnknownEntriesWrittenBefore() {
+        PluginIndexCache indexCache = new PluginIndexCache(directory.toFile());
+        indexCache.write("current", PluginIndex.of(List.of()));
+        indexCache.write("removed", PluginIndex.of(List.of()));
+        indexCache.write("written-later", PluginIndex.of(List.of()));
+        long before = System.currentTimeMillis() - 10_000;
+        assertTrue(new File(directory.toFile(), "current.json").setLastModified(before - 1));
+        assertTrue(new File(directory.toFile(), "removed.json").setLastModified(before - 1));
+
+        indexCache.prune(Set.of("current"), before);
+
+        assertNotNull(indexCache.read("current"));
+        assertNull(indexCache.read("removed"));
+        // 清理开始后写入的不删除
+        assertNotNull(indexCache.read("written-later"));
+    }
+}
@@ -0,0 +1,139 @@
+package org.example.core;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.LoggerFactory;
+import org.springframework.asm.AnnotationVisitor;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ * <p>
+ * 插件加载耗时，用生成的jar(5000个类，其中500个@Component)比较扫描jar和命中扫描缓存两种情况
+ * <p>
+ * 默认不执行，运行方式:
+ * mvn -pl plugin-framework test -Dtest=PluginLoadBenchmark -Dplugin.benchmark=true
+ * 比较并行扫描和单线程扫描时加上 -DargLine=-XX:ActiveProcessorCount=1，加载线程池的大小和cpu核数一致
+ */
+@EnabledIfSystemProperty(named = "plugin.benchmark", matches = "true")
+class PluginLoadBenchmark {
+    private static final int CLASSES = 5000;
+    private static final int COMPONENT_EVERY = 10;
+    private static final int WARMUP = 3;
+    private static final int ROUNDS = 8;
+
+    @TempDir
+    static Path directory;
+    private static File jar;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        // 每个bean都会打印注册日志，不计入耗时
+        ((Logger) LoggerFactory.getLogger("org.example.core")).setLevel(Level.WARN);
+        jar = directory.resolve("bench.jar").toFile();
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < CLASSES; i++) {
+                out.putNextEntry(new JarEntry("bench/C" + i + ".class"));
+                out.write(generate("bench/C" + i, i % COMPONENT_EVERY == 0));
+                out.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * 生成一个有构造方法、字段和几个方法的类
+     */
+    private static byte[] generate(String internalName, boolean component) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", null);
+        if (component) {
+            AnnotationVisitor annotation = writer.visitAnnotation("Lorg/springframework/stereotype/Component;", true);
+            annotation.visitEnd();
+        }
+        writer.visitField(Opcodes.ACC_PRIVATE, "value", "Ljava/lang/String;", null, null).visitEnd();
+        MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitLdcInsn(internalName);
+        constructor.visitFieldInsn(Opcodes.PUTFIELD, internalName, "value", "Ljava/lang/String;");
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+        for (int i = 0; i < 5; i++) {
+            MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "method" + i, "()Ljava/lang/String;", null, null);
+            method.visitCode();
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            method.visitFieldInsn(Opcodes.GETFIELD, internalName, "value", "Ljava/lang/String;");
+            method.visitLdcInsn("#" + i);
+            method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", false);
+            method.visitInsn(Opcodes.ARETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * 加载一次插件并卸载
+     *
+     * @return 加载耗时，毫秒
+     */
+    private static long load(PluginIndexCache indexCache) {
+        Plugin plugin = new Plugin();
+        plugin.setName("bench");
+        plugin.setMd5("bench");
+        long start = System.nanoTime();
+        assertTrue(plugin.load(List.of(jar), Map.of(), indexCache));
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        plugin.unload();
+        return millis;
+    }
+
+    private static void report(String name, PluginIndexCache indexCache) {
+        for (int i = 0; i < WARMUP; i++) {
+            load(indexCache);
+        }
+        long[] millis = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            millis[i] = load(indexCache);
+        }
+        Arrays.sort(millis);
+        System.out.printf("%-12s cpu=%d best=%dms median=%dms worst=%dms%n", name,
+                Runtime.getRuntime().availableProcessors(), millis[0], millis[ROUNDS / 2], millis[ROUNDS - 1]);
+    }
+
+    @Test
+    void scan() {
+        report("scan", null);
+    }
+
+    @Test
+    void cachedIndex() {
+        PluginIndexCache indexCache = new PluginIndexCache(directory.resolve("index").toFile());
+        // 第一次加载时写入缓存
+        load(indexCache);
+        report("cached-index", indexCache);
+    }
+}
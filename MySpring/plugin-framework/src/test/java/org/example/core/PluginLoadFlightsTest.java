@@ -0,0 +1,142 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginLoadFlightsTest {
+    private final Map<String, Integer> coalesced = new ConcurrentHashMap<>();
+    private final PluginLoadFlights loadFlights = new PluginLoadFlights(coalesced::put);
+
+    private static Plugin plugin(String name) {
+        Plugin plugin = new Plugin();
+        plugin.setName(name);
+        return plugin;
+    }
+
+    /**
+     * 第一个线程在加载时阻塞，其他线程进来后再放行
+     */
+    private List<Future<Plugin>> loadConcurrently(ExecutorService executor, int callers, String pluginName,
+                                                  CountDownLatch release, AtomicInteger loads, boolean fail) throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        List<Future<Plugin>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> loadFlights.load(pluginName, name -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            if (fail) {
+                throw new IllegalStateException("加载失败");
+            }
+            return plugin(name);
+        })));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < callers; i++) {
+            futures.add(executor.submit(() -> loadFlights.load(pluginName, name -> {
+                loads.incrementAndGet();
+                return plugin(name);
+            })));
+        }
+        return futures;
+    }
+
+    @Test
+    void concurrentLoadsShareOneResult() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        List<Future<Plugin>> futures = loadConcurrently(executor, 8, "test", release, loads, false);
+        // 等其他线程都开始等待
+        TimeUnit.MILLISECONDS.sleep(100);
+        release.countDown();
+        Plugin first = futures.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<Plugin> future : futures) {
+            assertSame(first, future.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+        assertEquals(7, coalesced.get("test"));
+    }
+
+    @Test
+    void failureIsThrownToLoaderAndNullToWaiters() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        List<Future<Plugin>> futures = loadConcurrently(executor, 4, "test", release, loads, true);
+        TimeUnit.MILLISECONDS.sleep(100);
+        release.countDown();
+        Exception e = assertThrows(Exception.class, () -> futures.get(0).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        for (Future<Plugin> future : futures.subList(1, futures.size())) {
+            assertNull(future.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(1, loads.get());
+
+        // 失败后下一次调用重新加载
+        Plugin plugin = loadFlights.load("test", name -> {
+            loads.incrementAndGet();
+            return plugin(name);
+        });
+        assertEquals("test", plugin.getName());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void differentPluginsLoadInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch bothLoading = new CountDownLatch(2);
+        List<Future<Plugin>> futures = new ArrayList<>();
+        for (String pluginName : List.of("a", "b")) {
+            futures.add(executor.submit(() -> loadFlights.load(pluginName, name -> {
+                bothLoading.countDown();
+                try {
+                    // 两个插件都进入加载才返回，串行加载会超时
+                    assertTrue(bothLoading.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return plugin(name);
+            })));
+        }
+        assertEquals("a", futures.get(0).get(10, TimeUnit.SECONDS).getName());
+        assertEquals("b", futures.get(1).get(10, TimeUnit.SECONDS).getName());
+        executor.shutdown();
+        assertTrue(coalesced.isEmpty());
+    }
+
+    @Test
+    void reentrantLoadFailsFast() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // 插件初始化时又加载自己，不能等待自己的加载结果
+        Future<Plugin> future = executor.submit(() -> loadFlights.load("test",
+                name -> loadFlights.load(name, PluginLoadFlightsTest::plugin)));
+        Exception e = assertThrows(Exception.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+        executor.shutdown();
+
+        // 失败的加载已经结束，之后可以正常加载
+        assertEquals("test", loadFlights.load("test", PluginLoadFlightsTest::plugin).getName());
+        assertTrue(coalesced.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginRateLimiterTest {
+
+    @Test
+    void burstThenThrottle() {
+        PluginRateLimiter rateLimiter = new PluginRateLimiter("test", 1, 5, Duration.ZERO);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, rateLimiter.reserve());
+        }
+        assertEquals(-1, rateLimiter.reserve());
+        assertEquals(1, rateLimiter.getThrottled().sum());
+        assertEquals(0, rateLimiter.getDelayed().sum());
+    }
+
+    @Test
+    void waitsForNextPermitWithinMaxWait() {
+        PluginRateLimiter rateLimiter = new PluginRateLimiter("test", 1, 1, Duration.ofSeconds(10));
+        assertEquals(0, rateLimiter.reserve());
+        // 第二个令牌要等一个间隔，第三个要等两个间隔
+        long wait = rateLimiter.reserve();
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900) && wait <= TimeUnit.SECONDS.toNanos(1), "wait=" + wait);
+        long next = rateLimiter.reserve();
+        assertTrue(next > wait + TimeUnit.MILLISECONDS.toNanos(900), "next=" + next);
+        assertEquals(2, rateLimiter.getDelayed().sum());
+    }
+
+    @Test
+    void rejectsBeyondMaxWait() {
+        PluginRateLimiter rateLimiter = new PluginRateLimiter("test", 1, 1, Duration.ofMillis(1500));
+        assertEquals(0, rateLimiter.reserve());
+        assertTrue(rateLimiter.reserve() > 0);
+        // 第三个需要等待将近2秒，超过maxWait，被拒绝后不占用令牌
+        assertEquals(-1, rateLimiter.reserve());
+        assertEquals(-1, rateLimiter.reserve());
+        assertEquals(2, rateLimiter.getThrottled().sum());
+    }
+
+    @Test
+    void unlimitedWhenRateNotPositive() {
+        PluginRateLimiter rateLimiter = new PluginRateLimiter("test", 0, 1, Duration.ZERO);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, rateLimiter.reserve());
+        }
+        assertEquals(0, rateLimiter.getThrottled().sum());
+    }
+
+    @Test
+    void updateDropsBacklogOfOldRate() {
+        PluginRateLimiter rateLimiter = new PluginRateLimiter("test", 0.1, 1, Duration.ofSeconds(60));
+        assertEquals(0, rateLimiter.reserve());
+        assertTrue(rateLimiter.reserve() > TimeUnit.SECONDS.toNanos(9));
+        rateLimiter.update(1000, 5, Duration.ZERO);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, rateLimiter.reserve());
+        }
+        assertEquals(1000, rateLimiter.getPermitsPerSecond());
+        assertEquals(5, rateLimiter.getBurst());
+    }
+
+    @Test
+    void concurrentCallersNeverExceedBurst() throws Exception {
+        // 间隔100秒，测试期间不会补充令牌
+        PluginRateLimiter rateLimiter = new PluginRateLimiter("test", 0.01, 10, Duration.ZERO);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                int granted = 0;
+                for (int j = 0; j < 100; j++) {
+                    if (rateLimiter.reserve() == 0) {
+                        granted++;
+                    }
+                }
+                return granted;
+            }));
+        }
+        start.countDown();
+        int granted = 0;
+        for (Future<Integer> future : futures) {
+            granted += future.get(5, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(10, granted);
+        assertEquals(16 * 100 - 10, rateLimiter.getThrottled().sum());
+    }
+}
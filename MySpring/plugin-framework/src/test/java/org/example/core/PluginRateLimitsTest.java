@@ -0,0 +1,58 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginRateLimitsTest {
+
+    private static PluginRateLimits rateLimits() {
+        PluginProperties pluginProperties = new PluginProperties();
+        pluginProperties.getRateLimit().setEnabled(true);
+        return new PluginRateLimits(pluginProperties);
+    }
+
+    private static PluginProperties.RateLimitRule rule(double permitsPerSecond, boolean adaptive) {
+        PluginProperties.RateLimitRule rule = new PluginProperties.RateLimitRule();
+        rule.setPermitsPerSecond(permitsPerSecond);
+        rule.setAdaptive(adaptive);
+        return rule;
+    }
+
+    @Test
+    void resolvedRuleIsCached() {
+        PluginRateLimits rateLimits = rateLimits();
+        assertSame(rateLimits.ruleFor("a"), rateLimits.ruleFor("a"));
+        assertNotSame(rateLimits.ruleFor("a"), rateLimits.ruleFor("b"));
+    }
+
+    @Test
+    void updateInvalidatesResolvedRule() {
+        PluginRateLimits rateLimits = rateLimits();
+        PluginProperties.RateLimitRule before = rateLimits.ruleFor("a");
+
+        PluginRateLimitStats stats = rateLimits.update("a", rule(42, true));
+
+        PluginProperties.RateLimitRule after = rateLimits.ruleFor("a");
+        assertNotSame(before, after);
+        assertEquals(42, after.getPermitsPerSecond());
+        assertEquals(42, stats.permitsPerSecond());
+        assertNotNull(rateLimits.concurrencyLimiterFor("a"));
+        // 其他插件不受影响
+        assertEquals(before.getPermitsPerSecond(), rateLimits.ruleFor("b").getPermitsPerSecond());
+    }
+
+    @Test
+    void disablingAdaptiveTakesEffectImmediately() {
+        PluginRateLimits rateLimits = rateLimits();
+        rateLimits.update("a", rule(10, true));
+        assertNotNull(rateLimits.concurrencyLimiterFor("a"));
+
+        rateLimits.update("a", rule(10, false));
+        assertNull(rateLimits.concurrencyLimiterFor("a"));
+    }
+}
@@ -0,0 +1,99 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class PluginTest {
+
+    private static Plugin plugin() {
+        Plugin plugin = new Plugin();
+        plugin.setName("test");
+        return plugin;
+    }
+
+    @Test
+    void retireWaitsForInFlightCalls() {
+        Plugin plugin = plugin();
+        assertTrue(plugin.acquire());
+        assertTrue(plugin.acquire());
+        plugin.retire();
+        assertFalse(plugin.isUnloaded());
+        plugin.release();
+        assertFalse(plugin.isUnloaded());
+        plugin.release();
+        assertTrue(plugin.isUnloaded());
+        assertEquals(0, plugin.getInFlight());
+    }
+
+    @Test
+    void retireWithoutCallsUnloadsImmediately() {
+        Plugin plugin = plugin();
+        plugin.retire();
+        assertTrue(plugin.isUnloaded());
+    }
+
+    @Test
+    void acquireFailsAfterRetire() {
+        Plugin plugin = plugin();
+        assertTrue(plugin.acquire());
+        plugin.retire();
+        assertFalse(plugin.acquire());
+        // 失败的acquire不占用调用数
+        assertEquals(1, plugin.getInFlight());
+        plugin.release();
+        assertTrue(plugin.isUnloaded());
+        assertFalse(plugin.acquire());
+        assertEquals(0, plugin.getInFlight());
+    }
+
+    @Test
+    void neverUnloadsUnderActiveCall() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            Plugin plugin = plugin();
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicBoolean unloadedDuringCall = new AtomicBoolean();
+            AtomicInteger calls = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    // 模拟切换期间不断进来的调用，acquire失败后由PluginManager换到新版本
+                    while (plugin.acquire()) {
+                        calls.incrementAndGet();
+                        if (plugin.isUnloaded()) {
+                            unloadedDuringCall.set(true);
+                        }
+                        plugin.release();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            TimeUnit.MILLISECONDS.sleep(5);
+            plugin.retire();
+            for (Future<?> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            assertFalse(unloadedDuringCall.get());
+            assertTrue(plugin.isUnloaded());
+            assertEquals(0, plugin.getInFlight());
+        }
+    }
+}
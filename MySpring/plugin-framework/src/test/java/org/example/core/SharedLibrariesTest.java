@@ -0,0 +1,154 @@
+package org.example.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.asm.ClassWriter;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author zhy
+ * @date 2024/10/12 10:00
+ */
+class SharedLibrariesTest {
+    @TempDir
+    Path directory;
+
+    /**
+     * 生成只有一个类的jar
+     *
+     * @param jarName
+     * @param internalName 类名
+     * @param superName    父类
+     * @param fields       字段数，用来生成内容不同的同名类
+     */
+    private File jar(String jarName, String internalName, String superName, int fields) throws IOException {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, superName, null);
+        for (int i = 0; i < fields; i++) {
+            writer.visitField(Opcodes.ACC_PUBLIC, "field" + i, "I", null, null).visitEnd();
+        }
+        MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        constructor.visitCode();
+        constructor.visitVarInsn(Opcodes.ALOAD, 0);
+        constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        constructor.visitInsn(Opcodes.RETURN);
+        constructor.visitMaxs(0, 0);
+        constructor.visitEnd();
+        writer.visitEnd();
+        File file = directory.resolve(jarName).toFile();
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new JarEntry(internalName + ".class"));
+            out.write(writer.toByteArray());
+            out.closeEntry();
+        }
+        return file;
+    }
+
+    private SharedLibraries sharedLibraries() {
+        return new SharedLibraries(directory.resolve("plugins-lib"), getClass().getClassLoader());
+    }
+
+    private static Map<File, String> libraries(File... files) {
+        Map<File, String> libraries = new LinkedHashMap<>();
+        for (File file : files) {
+            // 测试里用文件名代替md5，同名的jar内容相同
+            libraries.put(file, file.getName());
+        }
+        return libraries;
+    }
+
+    @Test
+    void samePluginLibrariesShareLoaders() throws IOException {
+        File base = jar("base-1.jar", "base/Base", "java/lang/Object", 0);
+        File app = jar("app-1.jar", "app/App", "base/Base", 0);
+        SharedLibraries sharedLibraries = sharedLibraries();
+
+        Map<File, SharedLibraryClassLoader> first = sharedLibraries.share("a", libraries(app, base));
+        Map<File, SharedLibraryClassLoader> second = sharedLibraries.share("b", libraries(app, base));
+
+        assertEquals(2, first.size());
+        assertSame(first.get(app), second.get(app));
+        assertSame(first.get(base), second.get(base));
+        assertEquals(Map.of("app-1.jar", Set.of("a", "b"), "base-1.jar", Set.of("a", "b")),
+                sharedLibraries.getLibraries());
+    }
+
+    @Test
+    void sharedLibraryLinksAgainstOwnDependencyVersion() throws Exception {
+        File base1 = jar("base-1.jar", "base/Base", "java/lang/Object", 0);
+        File base2 = jar("base-2.jar", "base/Base", "java/lang/Object", 1);
+        File app = jar("app-1.jar", "app/App", "base/Base", 0);
+        SharedLibraries sharedLibraries = sharedLibraries();
+
+        Map<File, SharedLibraryClassLoader> first = sharedLibraries.share("a", libraries(app, base1));
+        Map<File, SharedLibraryClassLoader> second = sharedLibraries.share("b", libraries(app, base2));
+
+        // 同一个jar依赖的版本不同，不能共用
+        assertNotSame(first.get(app), second.get(app));
+        assertSame(first.get(base1), first.get(app).loadClass("app.App").getSuperclass().getClassLoader());
+        assertSame(second.get(base2), second.get(app).loadClass("app.App").getSuperclass().getClassLoader());
+        assertEquals(1, second.get(app).loadClass("app.App").getSuperclass().getFields().length);
+    }
+
+    @Test
+    void pluginOnlySeesItsOwnLibraries() throws Exception {
+        File base = jar("base-1.jar", "base/Base", "java/lang/Object", 0);
+        File other = jar("other-1.jar", "other/Other", "java/lang/Object", 0);
+        SharedLibraries sharedLibraries = sharedLibraries();
+        sharedLibraries.share("a", libraries(base, other));
+
+        PluginClassLoader classLoader = new PluginClassLoader("plugin-b");
+        sharedLibraries.share("b", libraries(base)).values().forEach(classLoader::addSharedLibrary);
+
+        assertNotNull(classLoader.loadClass("base.Base"));
+        // 插件a共享的jar对插件b不可见
+        assertThrows(ClassNotFoundException.class, () -> classLoader.loadClass("other.Other"));
+        classLoader.close();
+    }
+
+    @Test
+    void pruneKeepsLibrariesInUse() throws IOException {
+        File used = jar("used-1.jar", "used/Used", "java/lang/Object", 0);
+        File kept = jar("kept-1.jar", "kept/Kept", "java/lang/Object", 0);
+        File removed = jar("removed-1.jar", "removed/Removed", "java/lang/Object", 0);
+        SharedLibraries sharedLibraries = sharedLibraries();
+        sharedLibraries.share("a", libraries(used, kept, removed));
+
+        // 插件a还在用的jar即使不在插件目录里了也不删除
+        sharedLibraries.prune(Set.of("kept-1.jar"), System.currentTimeMillis() + 1000);
+        Path libraryPath = directory.resolve("plugins-lib");
+        assertTrue(libraryPath.resolve("used-1.jar.jar").toFile().exists());
+
+        SharedLibraries restarted = sharedLibraries();
+        restarted.prune(Set.of("kept-1.jar"), System.currentTimeMillis() + 1000);
+        assertFalse(libraryPath.resolve("used-1.jar.jar").toFile().exists());
+        assertFalse(libraryPath.resolve("removed-1.jar.jar").toFile().exists());
+        assertTrue(libraryPath.resolve("kept-1.jar.jar").toFile().exists());
+    }
+
+    @Test
+    void conflictingPackagesAndTheirDependentsStayPrivate() throws IOException {
+        File base1 = jar("base-1.jar", "base/Base", "java/lang/Object", 0);
+        File base2 = jar("base-2.jar", "base/Base", "java/lang/Object", 1);
+        File app = jar("app-1.jar", "app/App", "base/Base", 0);
+        File other = jar("other-1.jar", "other/Other", "java/lang/Object", 0);
+
+        Map<File, SharedLibraryClassLoader> shared = sharedLibraries().share("a", libraries(app, base1, base2, other));
+
+        // 两个版本的base都不共享，依赖base的app也不共享
+        assertEquals(Set.of(other), shared.keySet());
+    }
+}
@@ -0,0 +1,156 @@
+package org.example.processor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @author zhy
+ * @date 2024/9/24 10:10
+ * <p>
+ * 编译插件时生成META-INF/plugin-index，列出Spring bean类和插件接口的实现类，
+ * 加载插件时直接按索引定义类，不需要扫描jar里的所有类
+ * <p>
+ * 格式和Spring的META-INF/spring.components一样，每行: 类名=注解或接口,注解或接口
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(PluginIndexProcessor.INTERFACES_OPTION)
+public class PluginIndexProcessor extends AbstractProcessor {
+    /**
+     * 索引文件位置，和PluginBuildIndex.LOCATION一致
+     */
+    static final String LOCATION = "META-INF/plugin-index";
+    /**
+     * 插件接口，多个用逗号分隔
+     */
+    static final String INTERFACES_OPTION = "plugin.index.interfaces";
+    private static final String DEFAULT_INTERFACES = "org.example.MessagePlugin";
+    private static final Set<String> STEREOTYPES = Set.of(
+            "org.springframework.stereotype.Component",
+            "org.springframework.stereotype.Repository",
+            "org.springframework.stereotype.Service",
+            "org.springframework.stereotype.Controller",
+            "org.springframework.web.bind.annotation.RestController",
+            "org.springframework.context.annotation.Configuration");
+
+    /**
+     * 类名 -> 注解和接口
+     */
+    private final Map<String, Set<String>> entries = new TreeMap<>();
+    /**
+     * 本次编译处理过的类，增量编译时这些类以本次的结果为准
+     */
+    private final Set<String> processed = new HashSet<>();
+    private final List<TypeElement> interfaces = new ArrayList<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        String option = processingEnv.getOptions().getOrDefault(INTERFACES_OPTION, DEFAULT_INTERFACES);
+        for (String name : option.split(",")) {
+            TypeElement typeElement = processingEnv.getElementUtils().getTypeElement(name.trim());
+            if (typeElement != null) {
+                interfaces.add(typeElement);
+            }
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getRootElements()) {
+            collect(element);
+        }
+        if (roundEnv.processingOver()) {
+            write();
+        }
+        // 不占用注解，其他处理器照常执行
+        return false;
+    }
+
+    private void collect(Element element) {
+        if (!(element instanceof TypeElement typeElement)) {
+            return;
+        }
+        String className = processingEnv.getElementUtils().getBinaryName(typeElement).toString();
+        processed.add(className);
+        if (typeElement.getKind() == ElementKind.CLASS && !typeElement.getModifiers().contains(Modifier.ABSTRACT)) {
+            Set<String> stereotypes = new TreeSet<>();
+            for (AnnotationMirror annotationMirror : typeElement.getAnnotationMirrors()) {
+                Element annotation = annotationMirror.getAnnotationType().asElement();
+                String annotationName = ((TypeElement) annotation).getQualifiedName().toString();
+                if (STEREOTYPES.contains(annotationName)) {
+                    stereotypes.add(annotationName);
+                }
+            }
+            Types types = processingEnv.getTypeUtils();
+            TypeMirror type = types.erasure(typeElement.asType());
+            for (TypeElement pluginInterface : interfaces) {
+                if (types.isAssignable(type, types.erasure(pluginInterface.asType()))) {
+                    stereotypes.add(pluginInterface.getQualifiedName().toString());
+                }
+            }
+            if (!stereotypes.isEmpty()) {
+                entries.put(className, stereotypes);
+            }
+        }
+        for (Element enclosed : typeElement.getEnclosedElements()) {
+            collect(enclosed);
+        }
+    }
+
+    private void write() {
+        Map<String, Set<String>> index = new TreeMap<>(readPrevious());
+        index.keySet().removeAll(processed);
+        index.putAll(entries);
+        try {
+            FileObject fileObject = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", LOCATION);
+            try (Writer writer = new OutputStreamWriter(fileObject.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write("# generated by " + getClass().getName() + "\n");
+                for (Map.Entry<String, Set<String>> entry : index.entrySet()) {
+                    writer.write(entry.getKey() + "=" + String.join(",", entry.getValue()) + "\n");
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "生成" + LOCATION + "失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 增量编译时读取上次生成的索引，保留没有重新编译、并且还存在的类
+     */
+    private Map<String, Set<String>> readPrevious() {
+        Map<String, Set<String>> previous = new TreeMap<>();
+        try {
+            FileObject fileObject = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", LOCATION);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fileObject.openInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int index = line.indexOf('=');
+                    if (line.startsWith("#") || index <= 0) {
+                        continue;
+                    }
+                    String className = line.substring(0, index);
+                    if (processingEnv.getElementUtils().getTypeElement(className.replace('$', '.')) != null) {
+                        previous.put(className, new TreeSet<>(Arrays.asList(line.substring(index + 1).split(","))));
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // 第一次编译，没有旧的索引
+        }
+        return previous;
+    }
+}